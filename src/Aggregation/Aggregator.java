@@ -0,0 +1,38 @@
+package Aggregation;
+
+import Utils.NodeRecord;
+
+/**
+ * ---------------------------------------------------------------------------------------------------------------------
+ * Aggregator
+ * ---------------------------------------------------------------------------------------------------------------------
+ * Computes a value over the records of the whole network.
+ * Every node turns its record into a partial state, partial states received from other nodes are merged into it
+ * and only the merged state is sent back, the node that started the request turns it into the result.
+ * Partial states are sent between nodes as strings and must not contain spaces or new lines.
+ */
+public interface Aggregator {
+    /**
+     * @param record Record of the node
+     * @return Partial state with only this record
+     */
+    String of(NodeRecord record);
+
+    /**
+     * @return Partial state that does not change anything when merged, sent by nodes that were already counted
+     */
+    String empty();
+
+    /**
+     * @param a Partial state
+     * @param b Partial state
+     * @return Partial state of both
+     */
+    String merge(String a, String b);
+
+    /**
+     * @param partial Partial state of the whole network
+     * @return Response for the client
+     */
+    String result(String partial);
+}
@@ -0,0 +1,47 @@
+package Aggregation;
+
+/**
+ * ---------------------------------------------------------------------------------------------------------------------
+ * Aggregators
+ * ---------------------------------------------------------------------------------------------------------------------
+ * Creates aggregators from their spec - <name> or <name>:<parameter>, e.g. max, top:3, quantile:0.5
+ */
+public class Aggregators {
+    /**
+     * @param spec Name and optional parameter of the aggregator
+     * @return Aggregator
+     */
+    public static Aggregator fromSpec(String spec) {
+        String[] parts = spec.split(":");
+        String name = parts[0];
+        String parameter = parts.length > 1 ? parts[1] : null;
+
+        switch (name) {
+            case "min":
+                return new MinMaxAggregator(false);
+            case "max":
+                return new MinMaxAggregator(true);
+            case "count":
+                return new CountAggregator();
+            case "sum":
+                return new SumAggregator();
+            case "avg":
+                return new AvgAggregator();
+            case "top":
+                return new TopAggregator(Integer.parseInt(requireParameter(parameter)));
+            case "quantile":
+                return new QuantileAggregator(Double.parseDouble(requireParameter(parameter)));
+            case "histogram":
+                return new HistogramAggregator(Integer.parseInt(requireParameter(parameter)));
+            default:
+                throw new IllegalArgumentException(String.format("Unknown aggregator: %s", name));
+        }
+    }
+
+    private static String requireParameter(String parameter) {
+        if (parameter == null) {
+            throw new IllegalArgumentException("Missing aggregator parameter");
+        }
+        return parameter;
+    }
+}
@@ -0,0 +1,36 @@
+package Aggregation;
+
+import Utils.NodeRecord;
+
+/**
+ * Average of all values in the network, partial state is <sum>/<count>
+ */
+public class AvgAggregator implements Aggregator {
+    @Override
+    public String of(NodeRecord record) {
+        return String.format("%d/1", record.getValue());
+    }
+
+    @Override
+    public String empty() {
+        return "0/0";
+    }
+
+    @Override
+    public String merge(String a, String b) {
+        String[] first = a.split("/");
+        String[] second = b.split("/");
+        return String.format("%d/%d",
+                Long.parseLong(first[0]) + Long.parseLong(second[0]),
+                Long.parseLong(first[1]) + Long.parseLong(second[1]));
+    }
+
+    @Override
+    public String result(String partial) {
+        String[] parts = partial.split("/");
+        long count = Long.parseLong(parts[1]);
+        if (count == 0) return "ERROR: Not found";
+
+        return String.valueOf((double) Long.parseLong(parts[0]) / count);
+    }
+}
@@ -0,0 +1,137 @@
+package Aggregation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ---------------------------------------------------------------------------------------------------------------------
+ * CentroidSketch
+ * ---------------------------------------------------------------------------------------------------------------------
+ * Approximate distribution of values kept as at most MAX_CENTROIDS centroids (mean and number of values),
+ * when there are more, the two closest neighbours are merged. Written as <mean>@<count> separated with semicolons.
+ */
+public class CentroidSketch {
+    private static final int MAX_CENTROIDS = 32;
+
+    private final List<double[]> centroids;
+
+    private CentroidSketch(List<double[]> centroids) {
+        this.centroids = centroids;
+    }
+
+    /**
+     * @param value Single value
+     * @return Sketch with only this value
+     */
+    public static CentroidSketch of(int value) {
+        List<double[]> centroids = new ArrayList<>();
+        centroids.add(new double[]{value, 1});
+        return new CentroidSketch(centroids);
+    }
+
+    /**
+     * @param partial Sketch written by toString
+     * @return Sketch
+     */
+    public static CentroidSketch parse(String partial) {
+        List<double[]> centroids = new ArrayList<>();
+        for (String part : partial.split(";")) {
+            if (part.isEmpty()) continue;
+            String[] meanCount = part.split("@");
+            centroids.add(new double[]{Double.parseDouble(meanCount[0]), Double.parseDouble(meanCount[1])});
+        }
+        return new CentroidSketch(centroids);
+    }
+
+    /**
+     * @param other Sketch to merge with
+     * @return Sketch of both
+     */
+    public CentroidSketch merge(CentroidSketch other) {
+        List<double[]> merged = new ArrayList<>(this.centroids);
+        merged.addAll(other.centroids);
+        merged.sort((a, b) -> Double.compare(a[0], b[0]));
+
+        while (merged.size() > MAX_CENTROIDS) {
+            int closest = 0;
+            for (int i = 1; i < merged.size() - 1; i++) {
+                if (merged.get(i + 1)[0] - merged.get(i)[0] < merged.get(closest + 1)[0] - merged.get(closest)[0]) {
+                    closest = i;
+                }
+            }
+
+            double[] left = merged.get(closest);
+            double[] right = merged.remove(closest + 1);
+            double count = left[1] + right[1];
+            merged.set(closest, new double[]{(left[0] * left[1] + right[0] * right[1]) / count, count});
+        }
+
+        return new CentroidSketch(merged);
+    }
+
+    /**
+     * @return Number of values in the sketch
+     */
+    public double count() {
+        double count = 0;
+        for (double[] centroid : this.centroids) {
+            count += centroid[1];
+        }
+        return count;
+    }
+
+    /**
+     * @param q Quantile between 0 and 1
+     * @return Approximate value below which q of the values are
+     */
+    public double quantile(double q) {
+        double target = q * this.count();
+        double seen = 0;
+        for (double[] centroid : this.centroids) {
+            seen += centroid[1];
+            if (seen >= target) return centroid[0];
+        }
+        return this.centroids.get(this.centroids.size() - 1)[0];
+    }
+
+    /**
+     * @param buckets Number of buckets of the same width between the smallest and largest value
+     * @return Buckets as <from>..<to>:<count> separated with commas
+     */
+    public String histogram(int buckets) {
+        double min = this.centroids.get(0)[0];
+        double max = this.centroids.get(this.centroids.size() - 1)[0];
+        double width = Math.max((max - min) / buckets, Double.MIN_VALUE);
+        long[] counts = new long[buckets];
+
+        for (double[] centroid : this.centroids) {
+            int bucket = (int) Math.min((centroid[0] - min) / width, buckets - 1);
+            counts[bucket] += Math.round(centroid[1]);
+        }
+
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < buckets; i++) {
+            result.add(String.format("%s..%s:%d", min + i * width, min + (i + 1) * width, counts[i]));
+        }
+        return String.join(",", result);
+    }
+
+    /**
+     * @return Whether the sketch has no values
+     */
+    public boolean isEmpty() {
+        return this.centroids.isEmpty();
+    }
+
+    /**
+     * @return <mean>@<count> separated with semicolons
+     */
+    @Override
+    public String toString() {
+        List<String> parts = new ArrayList<>();
+        for (double[] centroid : this.centroids) {
+            parts.add(String.format("%s@%s", centroid[0], centroid[1]));
+        }
+        return String.join(";", parts);
+    }
+}
@@ -0,0 +1,28 @@
+package Aggregation;
+
+import Utils.NodeRecord;
+
+/**
+ * Number of records in the network
+ */
+public class CountAggregator implements Aggregator {
+    @Override
+    public String of(NodeRecord record) {
+        return record.isSet() ? "1" : "0";
+    }
+
+    @Override
+    public String empty() {
+        return "0";
+    }
+
+    @Override
+    public String merge(String a, String b) {
+        return String.valueOf(Long.parseLong(a) + Long.parseLong(b));
+    }
+
+    @Override
+    public String result(String partial) {
+        return partial;
+    }
+}
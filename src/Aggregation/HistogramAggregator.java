@@ -0,0 +1,23 @@
+package Aggregation;
+
+/**
+ * Approximate number of values in the network in buckets of the same width
+ */
+public class HistogramAggregator extends SketchAggregator {
+    private final int buckets;
+
+    /**
+     * @param buckets Number of buckets
+     */
+    public HistogramAggregator(int buckets) {
+        if (buckets <= 0) {
+            throw new IllegalArgumentException("Number of buckets must be positive");
+        }
+        this.buckets = buckets;
+    }
+
+    @Override
+    protected String result(CentroidSketch sketch) {
+        return sketch.histogram(this.buckets);
+    }
+}
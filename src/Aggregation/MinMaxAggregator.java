@@ -0,0 +1,42 @@
+package Aggregation;
+
+import Utils.NodeRecord;
+
+/**
+ * Smallest or largest value in the network
+ */
+public class MinMaxAggregator implements Aggregator {
+    private final boolean max;
+
+    /**
+     * @param max Whether to look for the largest value
+     */
+    public MinMaxAggregator(boolean max) {
+        this.max = max;
+    }
+
+    @Override
+    public String of(NodeRecord record) {
+        return String.valueOf(record.getValue());
+    }
+
+    @Override
+    public String empty() {
+        return "";
+    }
+
+    @Override
+    public String merge(String a, String b) {
+        if (a.isEmpty()) return b;
+        if (b.isEmpty()) return a;
+
+        int first = Integer.parseInt(a);
+        int second = Integer.parseInt(b);
+        return String.valueOf(this.max ? Math.max(first, second) : Math.min(first, second));
+    }
+
+    @Override
+    public String result(String partial) {
+        return partial;
+    }
+}
@@ -0,0 +1,23 @@
+package Aggregation;
+
+/**
+ * Approximate value below which the given part of the values in the network are, e.g. 0.5 for median
+ */
+public class QuantileAggregator extends SketchAggregator {
+    private final double q;
+
+    /**
+     * @param q Quantile between 0 and 1
+     */
+    public QuantileAggregator(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1");
+        }
+        this.q = q;
+    }
+
+    @Override
+    protected String result(CentroidSketch sketch) {
+        return String.valueOf(sketch.quantile(this.q));
+    }
+}
@@ -0,0 +1,37 @@
+package Aggregation;
+
+import Utils.NodeRecord;
+
+/**
+ * Base of aggregators that need the distribution of values, partial state is a CentroidSketch
+ */
+public abstract class SketchAggregator implements Aggregator {
+    @Override
+    public String of(NodeRecord record) {
+        return CentroidSketch.of(record.getValue()).toString();
+    }
+
+    @Override
+    public String empty() {
+        return "";
+    }
+
+    @Override
+    public String merge(String a, String b) {
+        return CentroidSketch.parse(a).merge(CentroidSketch.parse(b)).toString();
+    }
+
+    @Override
+    public String result(String partial) {
+        CentroidSketch sketch = CentroidSketch.parse(partial);
+        if (sketch.isEmpty()) return "ERROR: Not found";
+
+        return this.result(sketch);
+    }
+
+    /**
+     * @param sketch Distribution of the values in the whole network, never empty
+     * @return Response for the client
+     */
+    protected abstract String result(CentroidSketch sketch);
+}
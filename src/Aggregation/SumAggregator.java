@@ -0,0 +1,28 @@
+package Aggregation;
+
+import Utils.NodeRecord;
+
+/**
+ * Sum of all values in the network
+ */
+public class SumAggregator implements Aggregator {
+    @Override
+    public String of(NodeRecord record) {
+        return String.valueOf(record.getValue());
+    }
+
+    @Override
+    public String empty() {
+        return "0";
+    }
+
+    @Override
+    public String merge(String a, String b) {
+        return String.valueOf(Long.parseLong(a) + Long.parseLong(b));
+    }
+
+    @Override
+    public String result(String partial) {
+        return partial;
+    }
+}
@@ -0,0 +1,54 @@
+package Aggregation;
+
+import Utils.NodeRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * k largest values in the network, partial state is the values separated with commas, largest first
+ */
+public class TopAggregator implements Aggregator {
+    private final int k;
+
+    /**
+     * @param k Number of values to return
+     */
+    public TopAggregator(int k) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        this.k = k;
+    }
+
+    @Override
+    public String of(NodeRecord record) {
+        return String.valueOf(record.getValue());
+    }
+
+    @Override
+    public String empty() {
+        return "";
+    }
+
+    @Override
+    public String merge(String a, String b) {
+        List<Integer> values = new ArrayList<>();
+        for (String part : (a + "," + b).split(",")) {
+            if (!part.isEmpty()) values.add(Integer.parseInt(part));
+        }
+
+        values.sort(Collections.reverseOrder());
+        List<String> top = new ArrayList<>();
+        for (int value : values.subList(0, Math.min(this.k, values.size()))) {
+            top.add(String.valueOf(value));
+        }
+        return String.join(",", top);
+    }
+
+    @Override
+    public String result(String partial) {
+        return partial;
+    }
+}
@@ -0,0 +1,160 @@
+package Benchmark;
+
+import Network.TCPClient;
+import Network.UDPTransport;
+import Utils.ClientResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ---------------------------------------------------------------------------------------------------------------------
+ * TransportBenchmark
+ * ---------------------------------------------------------------------------------------------------------------------
+ * Compares lookups between two nodes over TCP and over UDPTransport on loopback
+ * Usage: java Benchmark.TransportBenchmark [requests] [port]
+ * Every request is GET <ID> 17 answered with RETURN <ID> 17:4, sent one at a time,
+ * first on an idle connection and then while another thread keeps sending large messages over the same TCP connection
+ */
+public class TransportBenchmark {
+    private static final int DEFAULT_REQUESTS = 20000;
+    private static final int DEFAULT_PORT = 9900;
+    private static final int WARMUP_REQUESTS = 2000;
+    private static final int BULK_MESSAGE_SIZE = 64 * 1024;
+    private static final long TIMEOUT_MS = 5000;
+
+    private final Map<String, CompletableFuture<String>> pending;
+    private final TCPClient client;
+    private final TCPClient server;
+    private final UDPTransport clientUdp;
+    private final UDPTransport serverUdp;
+    private volatile boolean udp;
+    private volatile boolean load;
+
+    private TransportBenchmark(int port) throws IOException {
+        this.pending = new ConcurrentHashMap<>();
+
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            this.client = new TCPClient(new Socket("127.0.0.1", port), this::receiveResponse);
+            this.server = new TCPClient(serverSocket.accept(), this::receiveRequest);
+        }
+        new Thread(this.client).start();
+        new Thread(this.server).start();
+
+        this.clientUdp = new UDPTransport(port, this::receiveResponse);
+        this.serverUdp = new UDPTransport(port + 1, this::receiveRequest);
+        this.clientUdp.start();
+        this.serverUdp.start();
+        this.clientUdp.register(this.client, new InetSocketAddress("127.0.0.1", port + 1));
+        this.serverUdp.register(this.server, new InetSocketAddress("127.0.0.1", port));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_REQUESTS;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+
+        PrintStream out = System.out;
+        // Both transports log every message, which would be most of the measured time
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+
+        TransportBenchmark benchmark = new TransportBenchmark(port);
+        out.printf("%-5s %-5s %10s %10s %10s%n", "", "", "ops/s", "p50 us", "p99 us");
+        for (boolean load : new boolean[]{false, true}) {
+            for (boolean udp : new boolean[]{false, true}) {
+                out.println(benchmark.run(requests, udp, load));
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @param requests Number of requests to measure
+     * @param udp      Whether requests are sent over UDP
+     * @param load     Whether large messages are sent over TCP at the same time
+     * @return Requests per second and latency percentiles
+     */
+    private String run(int requests, boolean udp, boolean load) throws Exception {
+        this.udp = udp;
+        this.load = load;
+        Thread bulk = new Thread(this::sendBulk);
+        bulk.start();
+
+        String name = String.format("%s-%s", udp ? "udp" : "tcp", load ? "load" : "idle");
+        for (int i = 0; i < WARMUP_REQUESTS; i++) {
+            this.lookup(String.format("%s-warmup-%d", name, i));
+        }
+
+        long[] latencies = new long[requests];
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            long sent = System.nanoTime();
+            this.lookup(String.format("%s-%d", name, i));
+            latencies[i] = System.nanoTime() - sent;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        this.load = false;
+        bulk.join();
+
+        Arrays.sort(latencies);
+        return String.format("%-5s %-5s %10.0f %10.1f %10.1f", udp ? "udp" : "tcp", load ? "load" : "idle",
+                requests / (elapsed / 1e9),
+                latencies[requests / 2] / 1e3,
+                latencies[(int) (requests * 0.99)] / 1e3);
+    }
+
+    /**
+     * Sends GET and waits for RETURN
+     *
+     * @param ID ID of the request
+     */
+    private void lookup(String ID) throws Exception {
+        CompletableFuture<String> response = new CompletableFuture<>();
+        this.pending.put(ID, response);
+        this.send(this.client, this.clientUdp, String.format("GET %s 17", ID));
+        response.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void send(TCPClient node, UDPTransport transport, String message) {
+        if (this.udp && transport.send(node, message)) return;
+
+        node.send(message);
+    }
+
+    private void sendBulk() {
+        char[] payload = new char[BULK_MESSAGE_SIZE];
+        Arrays.fill(payload, 'x');
+        String message = "BULK " + new String(payload);
+        while (this.load) {
+            this.client.send(message);
+        }
+    }
+
+    private void receiveRequest(ClientResponse request, TCPClient node) {
+        String message = request.getMessage();
+        if (message == null || !message.startsWith("GET")) return;
+
+        this.send(node, this.serverUdp, String.format("RETURN %s 17:4", message.split(" ")[1]));
+    }
+
+    private void receiveResponse(ClientResponse response, TCPClient node) {
+        String message = response.getMessage();
+        if (message == null || !message.startsWith("RETURN")) return;
+
+        CompletableFuture<String> pending = this.pending.remove(message.split(" ")[1]);
+        if (pending != null) pending.complete(message);
+    }
+}
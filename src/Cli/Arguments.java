@@ -11,6 +11,11 @@ import java.util.ArrayList;
 public class Arguments {
     private int port;
     private NodeRecord record;
+    private int nearCacheSize;
+    private long nearCacheTTL;
+    private int replicas;
+    private boolean syncReplication;
+    private boolean udp;
 
 
     private ArrayList<NodeInfo> connect;
@@ -18,6 +23,8 @@ public class Arguments {
     public Arguments() {
         this.connect = new ArrayList<>();
         this.record = new NodeRecord();
+        this.nearCacheTTL = 5000;
+        this.syncReplication = true;
     }
 
     /**
@@ -70,4 +77,92 @@ public class Arguments {
     public NodeRecord getRecord() {
         return this.record;
     }
+
+    /**
+     * @param nearCacheSize Number of remote keys to cache, 0 disables the cache
+     */
+    public void setNearCacheSize(String nearCacheSize) {
+        this.nearCacheSize = Integer.parseInt(nearCacheSize);
+    }
+
+    /**
+     * @return Number of remote keys to cache
+     */
+    public int getNearCacheSize() {
+        return this.nearCacheSize;
+    }
+
+    /**
+     * @param nearCacheTTL Time in milliseconds a cached key can be used
+     */
+    public void setNearCacheTTL(String nearCacheTTL) {
+        this.nearCacheTTL = Long.parseLong(nearCacheTTL);
+    }
+
+    /**
+     * @return Time in milliseconds a cached key can be used
+     */
+    public long getNearCacheTTL() {
+        return this.nearCacheTTL;
+    }
+
+    /**
+     * @param replicas Number of nodes that keep a copy of the record
+     */
+    public void setReplicas(String replicas) {
+        this.replicas = Integer.parseInt(replicas);
+    }
+
+    /**
+     * @return Number of nodes that keep a copy of the record
+     */
+    public int getReplicas() {
+        return this.replicas;
+    }
+
+    /**
+     * @param replication sync - writes wait for all copies, async - writes do not wait
+     */
+    public void setReplication(String replication) {
+        switch (replication) {
+            case "sync":
+                this.syncReplication = true;
+                break;
+            case "async":
+                this.syncReplication = false;
+                break;
+            default:
+                throw new IllegalArgumentException("Replication must be sync or async");
+        }
+    }
+
+    /**
+     * @return Whether writes wait for all copies
+     */
+    public boolean isSyncReplication() {
+        return this.syncReplication;
+    }
+
+    /**
+     * @param udp on - small lookups between nodes are sent over UDP, off - everything is sent over TCP
+     */
+    public void setUdp(String udp) {
+        switch (udp) {
+            case "on":
+                this.udp = true;
+                break;
+            case "off":
+                this.udp = false;
+                break;
+            default:
+                throw new IllegalArgumentException("UDP must be on or off");
+        }
+    }
+
+    /**
+     * @return Whether small lookups between nodes are sent over UDP
+     */
+    public boolean isUdp() {
+        return this.udp;
+    }
 }
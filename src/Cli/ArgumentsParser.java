@@ -1,5 +1,12 @@
 package Cli;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * ---------------------------------------------------------------------------------------------------------------------
  * ArgumentsParser
@@ -7,6 +14,9 @@ package Cli;
  * Parses the CLI arguments into an Arguments object
  */
 public class ArgumentsParser {
+    private static final Set<String> NAMES = new HashSet<>(Arrays.asList(
+            "-config", "-tcpport", "-record", "-connect", "-nearcache", "-nearcachettl", "-replicas", "-replication", "-udp"));
+
     /**
      * @param args CLI arguments
      * @return Parsed arguments
@@ -14,20 +24,22 @@ public class ArgumentsParser {
     public static Arguments parseArgs(String[] args) {
         Arguments arguments = new Arguments();
         for (int i = 0; i < args.length; i++) {
-            switch (args[i]) {
-                case "-tcpport":
-                    arguments.setPort(args[++i]);
-                    break;
-                case "-record":
-                    arguments.setRecord(args[++i]);
-                    break;
-                case "-connect":
-                    arguments.setConnect(args[++i]);
-                    break;
-                default:
-                    System.out.printf("Invalid Argument: %s \n", args[i]);
-                    System.exit(1);
+            // The name is checked before its value is read, a trailing unknown argument has none
+            if (!NAMES.contains(args[i])) {
+                System.out.printf("Invalid Argument: %s \n", args[i]);
+                System.exit(1);
+            }
+            if (i + 1 >= args.length) {
+                System.out.printf("Missing value for argument: %s \n", args[i]);
+                System.exit(1);
+            }
+
+            if (args[i].equals("-config")) {
+                parseConfig(args[++i], arguments);
+                continue;
             }
+
+            setArgument(arguments, args[i], args[++i]);
         }
 
         if (!arguments.getRecord().isSet()) {
@@ -42,4 +54,80 @@ public class ArgumentsParser {
 
         return arguments;
     }
+
+    /**
+     * Reads arguments from a file, one per line without the dash, e.g.
+     * tcpport 9001
+     * record 17:4
+     * connect localhost:9000
+     * connect localhost:9002
+     * Empty lines and lines starting with # are skipped
+     *
+     * @param path      Path to the file
+     * @param arguments Arguments to fill
+     */
+    private static void parseConfig(String path, Arguments arguments) {
+        try {
+            for (String line : Files.readAllLines(Paths.get(path))) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+
+                String[] parts = line.split("\\s+", 2);
+                if (parts.length != 2) {
+                    System.out.printf("Invalid config line: %s \n", line);
+                    System.exit(1);
+                }
+                setArgument(arguments, "-" + parts[0], parts[1]);
+            }
+        } catch (IOException e) {
+            System.out.printf("Could not read config: %s \n", path);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @param arguments Arguments to fill
+     * @param name      Name of the argument with the dash, e.g. -tcpport
+     * @param value     Value of the argument, the program ends when it is invalid
+     */
+    private static void setArgument(Arguments arguments, String name, String value) {
+        try {
+            setValue(arguments, name, value);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            System.out.printf("Invalid value for argument %s: %s \n", name, value);
+            System.exit(1);
+        }
+    }
+
+    private static void setValue(Arguments arguments, String name, String value) {
+        switch (name) {
+            case "-tcpport":
+                arguments.setPort(value);
+                break;
+            case "-record":
+                arguments.setRecord(value);
+                break;
+            case "-connect":
+                arguments.setConnect(value);
+                break;
+            case "-nearcache":
+                arguments.setNearCacheSize(value);
+                break;
+            case "-nearcachettl":
+                arguments.setNearCacheTTL(value);
+                break;
+            case "-replicas":
+                arguments.setReplicas(value);
+                break;
+            case "-replication":
+                arguments.setReplication(value);
+                break;
+            case "-udp":
+                arguments.setUdp(value);
+                break;
+            default:
+                System.out.printf("Invalid Argument: %s \n", name);
+                System.exit(1);
+        }
+    }
 }
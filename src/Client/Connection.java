@@ -0,0 +1,174 @@
+package Client;
+
+import Utils.NodeInfo;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ---------------------------------------------------------------------------------------------------------------------
+ * Connection
+ * ---------------------------------------------------------------------------------------------------------------------
+ * A session with a single node (see HELLO-CLIENT), many requests can wait for their responses at the same time.
+ * Every request gets a tag that the node adds to its response, requests that are queued together are written
+ * to the socket in one batch. At most MAX_IN_FLIGHT requests are sent before their responses come back,
+ * which keeps the session below the limit the node uses to refuse commands from a busy client.
+ */
+public class Connection {
+    private static final int MAX_BATCH = 256;
+    private static final int MAX_IN_FLIGHT = 128;
+
+    private final NodeInfo node;
+    private final Socket socket;
+    private final BufferedReader in;
+    private final BufferedWriter out;
+    private final Map<String, CompletableFuture<String>> pending;
+    private final BlockingQueue<String> outgoing;
+    private final AtomicLong nextTag;
+    private final Semaphore sent;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * @param node Node to connect to
+     */
+    public Connection(NodeInfo node) throws IOException {
+        this.node = node;
+        this.socket = new Socket(node.getAddress(), node.getPort());
+        this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+        this.out = new BufferedWriter(new OutputStreamWriter(this.socket.getOutputStream()));
+        this.pending = new ConcurrentHashMap<>();
+        this.outgoing = new LinkedBlockingQueue<>();
+        this.nextTag = new AtomicLong();
+        this.sent = new Semaphore(MAX_IN_FLIGHT);
+
+        this.out.write("HELLO-CLIENT\n");
+        this.out.flush();
+        if (!"OK".equals(this.in.readLine())) {
+            this.socket.close();
+            throw new IOException(String.format("Node %s did not start a session", node));
+        }
+
+        Thread reader = new Thread(this::receive);
+        reader.setDaemon(true);
+        reader.start();
+        this.writer = new Thread(this::write);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * @param command Command to send, e.g. get-value 17
+     * @return Response of the node
+     */
+    public CompletableFuture<String> request(String command) {
+        CompletableFuture<String> response = new CompletableFuture<>();
+        String tag = String.valueOf(this.nextTag.incrementAndGet());
+        this.pending.put(tag, response);
+        this.outgoing.add(String.format("%s %s", tag, command));
+
+        if (this.closed && this.pending.remove(tag) != null) {
+            response.completeExceptionally(new IOException(String.format("Connection to %s is closed", this.node)));
+        }
+        return response;
+    }
+
+    /**
+     * @return Number of requests waiting for a response
+     */
+    public int inFlight() {
+        return this.pending.size();
+    }
+
+    /**
+     * @return Whether the connection can still send requests
+     */
+    public boolean isOpen() {
+        return !this.closed;
+    }
+
+    /**
+     * @return Node the connection is open to
+     */
+    public NodeInfo getNode() {
+        return this.node;
+    }
+
+    /**
+     * Closes the connection, requests that are still waiting fail
+     */
+    public void close() {
+        this.fail(new IOException(String.format("Connection to %s is closed", this.node)));
+    }
+
+    private void write() {
+        int batch = 0;
+        try {
+            while (!this.closed) {
+                String line = this.outgoing.take();
+                if (!this.sent.tryAcquire()) {
+                    // Responses only come back for requests that were flushed
+                    this.out.flush();
+                    batch = 0;
+                    this.sent.acquire();
+                }
+
+                this.out.write(line);
+                this.out.write('\n');
+                if (++batch == MAX_BATCH || this.outgoing.isEmpty()) {
+                    this.out.flush();
+                    batch = 0;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            this.fail(e);
+        }
+    }
+
+    private void receive() {
+        try {
+            String line;
+            while ((line = this.in.readLine()) != null) {
+                int tagEnd = line.indexOf(' ');
+                if (tagEnd < 0) continue;
+
+                CompletableFuture<String> response = this.pending.remove(line.substring(0, tagEnd));
+                if (response != null) {
+                    this.sent.release();
+                    response.complete(line.substring(tagEnd + 1));
+                }
+            }
+            this.fail(new IOException(String.format("Node %s closed the connection", this.node)));
+        } catch (IOException e) {
+            this.fail(e);
+        }
+    }
+
+    private void fail(Exception e) {
+        this.closed = true;
+        this.writer.interrupt();
+        try {
+            this.socket.close();
+        } catch (IOException ignored) {
+        }
+
+        for (String tag : new ArrayList<>(this.pending.keySet())) {
+            CompletableFuture<String> response = this.pending.remove(tag);
+            if (response != null) {
+                response.completeExceptionally(e);
+            }
+        }
+    }
+}
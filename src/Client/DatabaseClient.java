@@ -0,0 +1,143 @@
+package Client;
+
+import Utils.NodeInfo;
+import Utils.NodeRecord;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * ---------------------------------------------------------------------------------------------------------------------
+ * DatabaseClient
+ * ---------------------------------------------------------------------------------------------------------------------
+ * Client for the network that keeps a pool of sessions open to several entry nodes.
+ * Every request goes to the session with the fewest requests waiting, so the load is spread over the entry nodes,
+ * and requests fail with IllegalStateException when the node responds with an error.
+ */
+public class DatabaseClient implements AutoCloseable {
+    private final Map<NodeInfo, List<Connection>> pools;
+
+    /**
+     * @param entryNodes         Nodes to send requests to
+     * @param connectionsPerNode Number of sessions to open to each node
+     */
+    public DatabaseClient(List<NodeInfo> entryNodes, int connectionsPerNode) throws IOException {
+        this.pools = new HashMap<>();
+        for (NodeInfo node : entryNodes) {
+            List<Connection> pool = new ArrayList<>();
+            for (int i = 0; i < connectionsPerNode; i++) {
+                pool.add(new Connection(node));
+            }
+            this.pools.put(node, pool);
+        }
+    }
+
+    /**
+     * @param key Key to get
+     * @return Record with the key
+     */
+    public CompletableFuture<NodeRecord> getValue(int key) {
+        return this.request(null, String.format("get-value %d", key)).thenApply(response -> {
+            NodeRecord record = new NodeRecord();
+            record.setValue(response);
+            return record;
+        });
+    }
+
+    /**
+     * @param key   Key to set
+     * @param value Value to set
+     */
+    public CompletableFuture<Void> setValue(int key, int value) {
+        return this.request(null, String.format("set-value %d:%d", key, value)).thenApply(response -> null);
+    }
+
+    /**
+     * @param key Key to find
+     * @return Node that has the key
+     */
+    public CompletableFuture<NodeInfo> findKey(int key) {
+        return this.request(null, String.format("find-key %d", key)).thenApply(response -> {
+            String[] parts = response.split(":");
+            return new NodeInfo(parts[0], Integer.parseInt(parts[1]));
+        });
+    }
+
+    /**
+     * @return Smallest value in the network
+     */
+    public CompletableFuture<Integer> getMin() {
+        return this.request(null, "get-min").thenApply(Integer::parseInt);
+    }
+
+    /**
+     * @return Largest value in the network
+     */
+    public CompletableFuture<Integer> getMax() {
+        return this.request(null, "get-max").thenApply(Integer::parseInt);
+    }
+
+    /**
+     * @param node  Entry node whose record is replaced
+     * @param key   Key of the new record
+     * @param value Value of the new record
+     */
+    public CompletableFuture<Void> newRecord(NodeInfo node, int key, int value) {
+        if (!this.pools.containsKey(node)) {
+            throw new IllegalArgumentException(String.format("Not connected to %s", node));
+        }
+        return this.request(node, String.format("new-record %d:%d", key, value)).thenApply(response -> null);
+    }
+
+    /**
+     * Closes all sessions
+     */
+    @Override
+    public void close() {
+        for (List<Connection> pool : this.pools.values()) {
+            for (Connection connection : pool) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * @param node    Node to send the request to, null for any entry node
+     * @param command Command to send
+     * @return Response, failed when the node responded with an error
+     */
+    private CompletableFuture<String> request(NodeInfo node, String command) {
+        Connection connection = null;
+        for (Map.Entry<NodeInfo, List<Connection>> pool : this.pools.entrySet()) {
+            if (node != null && !pool.getKey().equals(node)) continue;
+
+            for (Connection candidate : pool.getValue()) {
+                if (!candidate.isOpen()) continue;
+                if (connection == null || candidate.inFlight() < connection.inFlight()) {
+                    connection = candidate;
+                }
+            }
+        }
+
+        CompletableFuture<String> response = new CompletableFuture<>();
+        if (connection == null) {
+            response.completeExceptionally(new IllegalStateException("No open connection"));
+            return response;
+        }
+
+        connection.request(command).whenComplete((message, e) -> {
+            if (e != null) {
+                response.completeExceptionally(e);
+            } else if (message.startsWith("ERROR")) {
+                response.completeExceptionally(new IllegalStateException(message));
+            } else {
+                response.complete(message);
+            }
+        });
+        return response;
+    }
+}
@@ -0,0 +1,219 @@
+package Network;
+
+import Utils.NodeInfo;
+import Utils.NodeRecord;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * ---------------------------------------------------------------------------------------------------------------------
+ * BulkTransfer
+ * ---------------------------------------------------------------------------------------------------------------------
+ * Streams records to another node over a separate connection to its TCP port:
+ * BULK-BEGIN <mode> <port>
+ * <key>:<value>
+ * <key> - removes a key sent earlier, used for changes made while the records were sent
+ * ...
+ * BULK-END
+ * The receiver stores the records once BULK-END arrives and responds OK <number of lines>.
+ * Records are written in chunks of CHUNK_SIZE bytes from a direct buffer, at most MAX_BYTES_PER_SECOND,
+ * so the transfer does not take the bandwidth of the requests that are served at the same time
+ */
+public class BulkTransfer implements Closeable {
+    public static final String BEGIN = "BULK-BEGIN";
+    public static final String END = "BULK-END";
+    public static final String HANDOFF = "handoff";
+    public static final String REPLICA = "replica";
+    public static final String SUCCESSOR = "successor";
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final long MAX_BYTES_PER_SECOND = 8 * 1024 * 1024;
+    private static final int TIMEOUT_MS = 10000;
+
+    private final SocketChannel channel;
+    private final ByteBuffer buffer;
+    private final long started;
+    private long sent;
+    private int lines;
+
+    /**
+     * Records received in a transfer, they are only used once the transfer is complete
+     */
+    public static class Incoming {
+        private final String mode;
+        private final int port;
+        private final Map<Integer, NodeRecord> records;
+        private int lines;
+
+        /**
+         * @param header BULK-BEGIN <mode> <port>
+         */
+        public Incoming(String header) {
+            String[] parts = header.split(" ");
+            this.mode = parts[1];
+            this.port = Integer.parseInt(parts[2]);
+            this.records = new LinkedHashMap<>();
+        }
+
+        /**
+         * @param line key:value, a later line with the same key replaces the earlier one, or key to remove it
+         */
+        public void add(String line) {
+            this.lines++;
+            if (!line.contains(":")) {
+                this.records.remove(Integer.parseInt(line));
+                return;
+            }
+
+            NodeRecord record = new NodeRecord();
+            record.setValue(line);
+            this.records.put(record.getKey(), record);
+        }
+
+        /**
+         * @return Number of lines received, the sender compares it with the number of lines it sent
+         */
+        public int getLines() {
+            return this.lines;
+        }
+
+        /**
+         * @return handoff - the receiver becomes the owner, replica - the receiver keeps copies,
+         * successor - the receiver keeps copies and takes writes for them once the sender is gone
+         */
+        public String getMode() {
+            return this.mode;
+        }
+
+        /**
+         * @return TCP port of the node that sent the records
+         */
+        public int getPort() {
+            return this.port;
+        }
+
+        /**
+         * @return Received records by key
+         */
+        public Map<Integer, NodeRecord> getRecords() {
+            return this.records;
+        }
+    }
+
+    /**
+     * Connects to the node and sends the header
+     *
+     * @param target Address and TCP port of the node
+     * @param mode   HANDOFF, REPLICA or SUCCESSOR
+     * @param port   TCP port of this node
+     */
+    public BulkTransfer(NodeInfo target, String mode, String port) throws IOException {
+        this.channel = SocketChannel.open();
+        this.channel.socket().connect(new InetSocketAddress(target.getAddress(), target.getPort()), TIMEOUT_MS);
+        this.channel.socket().setSoTimeout(TIMEOUT_MS);
+        this.buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        this.started = System.nanoTime();
+        this.writeLine(String.format("%s %s %s", BEGIN, mode, port));
+    }
+
+    /**
+     * @param records Records to send
+     */
+    public void write(Collection<NodeRecord> records) throws IOException {
+        for (NodeRecord record : records) {
+            this.writeRecordLine(record.toString());
+        }
+    }
+
+    /**
+     * Sends the records that were added or changed since the snapshot and removes the keys that are gone
+     *
+     * @param snapshot Records that were sent
+     * @param current  Records as they are now
+     */
+    public void writeChanges(Collection<NodeRecord> snapshot, Collection<NodeRecord> current) throws IOException {
+        Set<String> sent = new HashSet<>();
+        for (NodeRecord record : snapshot) {
+            sent.add(record.toString());
+        }
+
+        Set<Integer> keys = new HashSet<>();
+        for (NodeRecord record : current) {
+            keys.add(record.getKey());
+            if (!sent.contains(record.toString())) this.writeRecordLine(record.toString());
+        }
+        for (NodeRecord record : snapshot) {
+            if (!keys.contains(record.getKey())) this.writeRecordLine(String.valueOf(record.getKey()));
+        }
+    }
+
+    /**
+     * Sends BULK-END and everything that is still buffered
+     */
+    public void end() throws IOException {
+        this.writeLine(END);
+        this.flush();
+    }
+
+    /**
+     * @return Whether the node stored everything that was sent
+     */
+    public boolean awaitStored() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                this.channel.socket().getInputStream(), StandardCharsets.UTF_8));
+        String response = in.readLine();
+        System.out.printf("Bulk transfer of %d lines finished: %s%n", this.lines, response);
+        return String.format("OK %d", this.lines).equals(response);
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeRecordLine(String line) throws IOException {
+        this.writeLine(line);
+        this.lines++;
+    }
+
+    private void writeLine(String line) throws IOException {
+        byte[] data = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        if (this.buffer.remaining() < data.length) {
+            this.flush();
+        }
+        this.buffer.put(data);
+    }
+
+    /**
+     * Writes the buffered chunk, then waits while the transfer is faster than MAX_BYTES_PER_SECOND
+     */
+    private void flush() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining()) {
+            this.sent += this.channel.write(this.buffer);
+        }
+        this.buffer.clear();
+
+        long allowedAfterNanos = this.sent * 1_000_000_000L / MAX_BYTES_PER_SECOND;
+        long waitMs = (allowedAfterNanos - (System.nanoTime() - this.started)) / 1_000_000;
+        if (waitMs <= 0) return;
+
+        try {
+            Thread.sleep(waitMs);
+        } catch (InterruptedException e) {
+            throw new IOException("Bulk transfer interrupted", e);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package Network;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ---------------------------------------------------------------------------------------------------------------------
+ * Membership
+ * ---------------------------------------------------------------------------------------------------------------------
+ * Keeps track of which connected nodes are alive.
+ * Every HEARTBEAT_INTERVAL_MS it sends HEARTBEAT to all members and checks their PhiAccrualDetector,
+ * members whose phi reaches PHI_THRESHOLD are reported to the SuspicionHandler, they stay members
+ * and are reported to the RecoveryHandler once their heartbeats arrive again.
+ */
+public class Membership {
+    public interface SuspicionHandler {
+        void suspect(TCPClient client);
+    }
+
+    public interface RecoveryHandler {
+        void recover(TCPClient client);
+    }
+
+    public static final String HEARTBEAT = "HEARTBEAT";
+
+    private static final long HEARTBEAT_INTERVAL_MS = 1000;
+    private static final long ACCEPTABLE_PAUSE_MS = 3000;
+    private static final double PHI_THRESHOLD = 8;
+
+    private final Map<TCPClient, PhiAccrualDetector> detectors;
+    private final Set<TCPClient> suspected;
+    private final SuspicionHandler handler;
+    private final RecoveryHandler recoveryHandler;
+    private final Timer timer;
+
+    /**
+     * @param handler         Called when a member is suspected to be dead
+     * @param recoveryHandler Called when a suspected member sends heartbeats again
+     */
+    public Membership(SuspicionHandler handler, RecoveryHandler recoveryHandler) {
+        this.detectors = new ConcurrentHashMap<>();
+        this.suspected = ConcurrentHashMap.newKeySet();
+        this.handler = handler;
+        this.recoveryHandler = recoveryHandler;
+        this.timer = new Timer(true);
+    }
+
+    /**
+     * Starts sending heartbeats and checking members
+     */
+    public void start() {
+        this.timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS);
+    }
+
+    /**
+     * @param client Node to monitor
+     */
+    public void join(TCPClient client) {
+        this.detectors.putIfAbsent(client, new PhiAccrualDetector(HEARTBEAT_INTERVAL_MS, ACCEPTABLE_PAUSE_MS));
+    }
+
+    /**
+     * @param client Node to stop monitoring
+     */
+    public void leave(TCPClient client) {
+        this.detectors.remove(client);
+        this.suspected.remove(client);
+    }
+
+    /**
+     * @param client Node to check
+     * @return Whether the node is suspected to be dead, requests are not sent to it until it recovers
+     */
+    public boolean isSuspected(TCPClient client) {
+        return this.suspected.contains(client);
+    }
+
+    /**
+     * @param client Node the heartbeat came from
+     */
+    public void heartbeat(TCPClient client) {
+        PhiAccrualDetector detector = this.detectors.get(client);
+        if (detector != null) {
+            detector.heartbeat();
+        }
+    }
+
+    private void tick() {
+        for (Map.Entry<TCPClient, PhiAccrualDetector> entry : this.detectors.entrySet()) {
+            TCPClient client = entry.getKey();
+            double phi = entry.getValue().phi();
+
+            // Heartbeats are still sent to suspected nodes, they need them to stop suspecting this node
+            client.send(HEARTBEAT);
+            if (phi >= PHI_THRESHOLD && this.suspected.add(client)) {
+                System.out.printf("Suspecting node: %s, phi %.2f%n", client.getNodeInfo(), phi);
+                this.handler.suspect(client);
+            } else if (phi < PHI_THRESHOLD && this.suspected.remove(client)) {
+                System.out.printf("Node recovered: %s, phi %.2f%n", client.getNodeInfo(), phi);
+                this.recoveryHandler.recover(client);
+            }
+        }
+    }
+}
@@ -1,13 +1,20 @@
 package Network;
 
+import Aggregation.Aggregator;
+import Aggregation.Aggregators;
 import Cli.Arguments;
 import Utils.ClientResponse;
+import Utils.NearCache;
 import Utils.NodeInfo;
 import Utils.NodeRecord;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * ---------------------------------------------------------------------------------------------------------------------
@@ -16,61 +23,269 @@ import java.util.*;
  * Represents a node in the network
  * Example request string: "get-value 17
  * Available commands:
- * - get-value <key> - returns key:value from whole network
+ * - get-value <key> [fresh] - returns key:value from whole network, fresh skips the near cache, copies can answer it
  * - set-value <key>:<value> - sets key to value in the network
  * - find-key <key> - returns the node that contains the key address:port
- * - get-max-key - returns the maximum key:value in the network
- * - get-min-key - returns the minimum key:value in the network
- * - new-record <key>:<value> - replaces the current record with a new one on this node
- * - terminate - terminates the Node
+ * - get-max - returns the maximum value in the network
+ * - get-min - returns the minimum value in the network
+ * - get-count, get-sum, get-avg - returns the number, sum and average of values in the network
+ * - get-top <k> - returns the k largest values in the network
+ * - get-quantile <q> - returns the approximate q quantile of values in the network
+ * - get-histogram <buckets> - returns the approximate number of values in buckets of the same width
+ * - new-record <key>:<value> - replaces the current record with a new one on this node and its copies
+ * - cache-stats - returns hits, misses, evictions and size of the near cache
+ * - HELLO-CLIENT - starts a session, every following request starts with a tag that is added to its response,
+ *   e.g. "7 get-value 17" -> "7 17:4", and the connection stays open
+ * - watch <key> - returns key:value and keeps the connection open, sending key:value every time the key changes
+ * - ready - returns OK once the node finished connecting to all nodes it was told to connect to
+ * - terminate - hands the records of this node to another node and terminates the Node once it stored them
  */
 public class Node {
     private final NodeRecord record;
     private final TCPServer server;
 
-    private final Map<Integer, TCPClient> clients;
+    private final Map<NodeInfo, TCPClient> clients;
+    private final Set<TCPClient> sessions;
+    private final Scheduler scheduler;
+    private final ArrayList<NodeInfo> nodesToConnect;
+    private final Set<TCPClient> awaitingHandshake;
+    private final Set<TCPClient> joining;
+    private final Set<TCPClient> removedNodes;
+    private int pendingHandshakes;
+    private volatile boolean ready;
+    private final Membership membership;
+    private final UDPTransport udp;
     private Map<String, String> responseCache;
     private Map<String, TCPClient> requestOrigin;
     private Map<String, Set<TCPClient>> clientsToRespond;
     private Map<String, Set<TCPClient>> waitingForResponseFrom;
     private Set<String> IDsOriginatedFromThisNode;
-    private Map<String, Integer> minMaxCache;
+    private Map<String, Aggregator> aggregations;
+    private Map<String, String> partials;
+    private Map<String, TCPClient> watchUpstream;
+    private Map<String, TCPClient> watchDownstream;
+    private Map<Integer, Set<String>> watchers;
+    private Set<Integer> pendingWatchEvents;
+    private final Timer watchTimer;
+    private final NearCache nearCache;
+    private Map<String, Integer> nearCacheReads;
+    private Map<String, String> inFlight;
+    private Map<String, String> inFlightOperations;
+    private Map<NodeInfo, Map<Integer, NodeRecord>> replicas;
+    private Set<NodeInfo> successorOf;
+    private Set<NodeInfo> takenOver;
+    private List<TCPClient> copyHolders;
+    private Map<Integer, NodeRecord> adopted;
+    private final Map<TCPClient, NodeInfo> listenAddresses;
+    private final Map<TCPClient, BulkTransfer.Incoming> incomingTransfers;
+    private volatile boolean draining;
+    private TCPClient handOffTarget;
+    private boolean handedOff;
+    private Set<Integer> forwardedKeys;
+    private List<String[]> heldWrites;
+    private Map<String, String> forwardedWrites;
+    private Map<TCPClient, List<String>> pendingReplicas;
+    private Map<String, Set<TCPClient>> replicaAcks;
+    private final int replicationFactor;
+    private final boolean syncReplication;
+    private Set<String> seenInvalidations;
 
+    private static final int WATCH_COALESCE_MS = 50;
+    private static final int MAX_SEEN_INVALIDATIONS = 1024;
+    private static final int MAX_PARALLEL_CONNECTS = 32;
+    private static final int CONNECT_ATTEMPTS = 10;
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final long CONNECT_BACKOFF_MS = 100;
+    private static final long MAX_CONNECT_BACKOFF_MS = 5000;
+    private static final long FORWARD_TIMEOUT_MS = 5000;
 
     public Node(Arguments arguments) {
         this.responseCache = new HashMap<>();
         this.server = new TCPServer(arguments.getPort());
         this.record = arguments.getRecord();
-        this.clients = new HashMap<>();
+        // Read by the connection threads to schedule messages, so they have to be concurrent
+        this.clients = new ConcurrentHashMap<>();
+        this.sessions = ConcurrentHashMap.newKeySet();
+        this.scheduler = new Scheduler(this::handleMessage);
+        this.nodesToConnect = arguments.getConnect();
+        this.awaitingHandshake = ConcurrentHashMap.newKeySet();
+        // Connections that sent HELLO-NODE, read by the connection threads before the node is in this.clients
+        this.joining = ConcurrentHashMap.newKeySet();
+        // Nodes that were removed while their messages were still queued, until their connection ends
+        this.removedNodes = ConcurrentHashMap.newKeySet();
+        this.membership = new Membership(this::suspectNode, this::recoverNode);
+        // null when disabled, all messages are sent over TCP
+        this.udp = arguments.isUdp() ? new UDPTransport(arguments.getPort(), this::receiveFromNode) : null;
         this.clientsToRespond = new HashMap<>();
         this.IDsOriginatedFromThisNode = new HashSet<>();
         this.requestOrigin = new HashMap<>();
         this.waitingForResponseFrom = new HashMap<>();
-        this.minMaxCache = new HashMap<>();
-
-        if (arguments.getConnect() != null) {
-            this.connect(arguments.getConnect());
-        }
+        this.aggregations = new HashMap<>();
+        this.partials = new HashMap<>();
+        this.watchUpstream = new HashMap<>();
+        this.watchDownstream = new HashMap<>();
+        this.watchers = new HashMap<>();
+        this.pendingWatchEvents = new HashSet<>();
+        this.watchTimer = new Timer(true);
+        this.nearCache = new NearCache(arguments.getNearCacheSize(), arguments.getNearCacheTTL());
+        this.nearCacheReads = new HashMap<>();
+        this.inFlight = new HashMap<>();
+        this.inFlightOperations = new HashMap<>();
+        this.replicas = new HashMap<>();
+        this.successorOf = new HashSet<>();
+        this.takenOver = new HashSet<>();
+        this.copyHolders = new ArrayList<>();
+        this.adopted = new HashMap<>();
+        this.listenAddresses = new ConcurrentHashMap<>();
+        this.incomingTransfers = new ConcurrentHashMap<>();
+        this.forwardedKeys = new HashSet<>();
+        this.heldWrites = new ArrayList<>();
+        this.forwardedWrites = new HashMap<>();
+        this.pendingReplicas = new HashMap<>();
+        this.replicaAcks = new HashMap<>();
+        this.replicationFactor = arguments.getReplicas();
+        this.syncReplication = arguments.isSyncReplication();
+        this.seenInvalidations = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return this.size() > MAX_SEEN_INVALIDATIONS;
+            }
+        });
     }
 
     /**
-     * Connects to all the nodes in the list
+     * Connects to all the nodes in the list in parallel, the node is ready once all of them responded to HELLO-NODE
      *
      * @param connect Node to connect to
      */
-    private void connect(ArrayList<NodeInfo> connect) {
+    private synchronized void connect(ArrayList<NodeInfo> connect) {
+        this.pendingHandshakes = connect.size();
+        if (connect.isEmpty()) {
+            this.markReady();
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_PARALLEL_CONNECTS, connect.size()));
         for (NodeInfo nodeInfo : connect) {
+            executor.submit(() -> this.connect(nodeInfo));
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Connects to the node, retrying with exponential backoff while it is not listening yet
+     *
+     * @param nodeInfo Node to connect to
+     */
+    private void connect(NodeInfo nodeInfo) {
+        long backoff = CONNECT_BACKOFF_MS;
+        for (int attempt = 1; attempt <= CONNECT_ATTEMPTS; attempt++) {
+            Socket socket = new Socket();
             try {
-                Socket socket = new Socket(nodeInfo.getAddress(), nodeInfo.getPort());
-                TCPClient client = new TCPClient(socket, this::handleMessage);
+                socket.connect(new InetSocketAddress(nodeInfo.getAddress(), nodeInfo.getPort()), CONNECT_TIMEOUT_MS);
+                TCPClient client = new TCPClient(socket, this::receive);
                 System.out.printf("Connected to %s%n", nodeInfo);
+                // Nothing else is sent to the node before it answered HELLO-NODE
+                this.awaitingHandshake.add(client);
                 new Thread(client).start();
-                this.clients.put(client.getPort(), client);
-                client.send("HELLO-NODE");
+                client.send(this.hello("HELLO-NODE"));
+                return;
             } catch (IOException e) {
-                e.printStackTrace();
+                System.out.printf("Could not connect to %s, attempt %d: %s%n", nodeInfo, attempt, e.getMessage());
+                try {
+                    socket.close();
+                } catch (IOException closeError) {
+                    closeError.printStackTrace();
+                }
             }
+
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, MAX_CONNECT_BACKOFF_MS);
+        }
+
+        System.out.printf("Giving up on %s, the node will not be ready%n", nodeInfo);
+    }
+
+    /**
+     * @param client - node this node connected to, it answered HELLO-NODE
+     */
+    private synchronized void addNode(TCPClient client) {
+        this.clients.put(client.getNodeInfo(), client);
+        this.forgetCopiesOf(client.getNodeInfo());
+        this.listenAddresses.put(client, client.getNodeInfo());
+        this.membership.join(client);
+    }
+
+    /**
+     * HELLO-NODE <port> [udp] - a node connected to this node, it is added to this.clients and gets HELLO-ACK
+     *
+     * @param client - node that connected
+     * @param parts  - parts of the message
+     */
+    private void acceptNode(TCPClient client, String[] parts) {
+        this.joining.remove(client);
+        if (!this.clients.containsKey(client.getNodeInfo())) {
+            this.clients.put(client.getNodeInfo(), client);
+            this.membership.join(client);
+            System.out.println(this.clients);
+            this.registerListenAddress(client, parts);
+            this.refreshReplicas(false);
+        }
+        client.send(this.hello("HELLO-ACK"));
+    }
+
+    /**
+     * HELLO-ACK <port> [udp] - the node registered this node after HELLO-NODE, requests can be sent to it from now on
+     *
+     * @param client - node that responded
+     * @param parts  - parts of the message
+     */
+    private void completeHandshake(TCPClient client, String[] parts) {
+        if (!this.awaitingHandshake.remove(client)) return;
+
+        this.addNode(client);
+        this.registerListenAddress(client, parts);
+        this.refreshReplicas(false);
+        if (--this.pendingHandshakes == 0) {
+            this.markReady();
+        }
+    }
+
+    /**
+     * @param verb - HELLO-NODE or HELLO-ACK
+     * @return Greeting with the port of this node, and udp when it receives lookups over UDP
+     */
+    private String hello(String verb) {
+        boolean udp = this.udp != null && this.udp.isRunning();
+        return String.format("%s %s%s", verb, this.server.getPort(), udp ? " udp" : "");
+    }
+
+    /**
+     * Remembers the port the node listens on for bulk transfers, and sends lookups to it over UDP if both nodes support it
+     *
+     * @param client - node that sent HELLO-NODE or HELLO-ACK
+     * @param parts  - parts of the message, HELLO-NODE <port> [udp]
+     */
+    private void registerListenAddress(TCPClient client, String[] parts) {
+        if (parts.length < 2) return;
+
+        NodeInfo address = new NodeInfo(client.getNodeInfo().getAddress(), Integer.parseInt(parts[1]));
+        if (!address.equals(this.listenAddresses.get(client))) {
+            this.forgetCopiesOf(address);
         }
+        this.listenAddresses.put(client, address);
+        if (this.udp == null || !this.udp.isRunning() || parts.length < 3 || !parts[2].equals("udp")) return;
+
+        this.udp.register(client, new InetSocketAddress(address.getAddress(), address.getPort()));
+    }
+
+    private void markReady() {
+        this.ready = true;
+        System.out.printf("Ready, connected to %d nodes%n", this.clients.size());
     }
 
     /**
@@ -78,15 +293,138 @@ public class Node {
      */
     public void start() {
         this.server.start();
+        if (this.udp != null) {
+            this.udp.start();
+        }
+        this.scheduler.start();
+        this.membership.start();
+        this.connect(this.nodesToConnect);
         System.out.printf("Listening on port %s%n", this.server.getPort());
         while (true) {
-            this.server.accept(this::handleMessage);
+            this.server.accept(this::receive);
+        }
+    }
+
+    /**
+     * Heartbeats are handled right away, so a busy node is not suspected by the others.
+     * Other messages are queued in the scheduler, responses first, then requests from nodes, then new commands,
+     * new commands are refused with ERROR Busy when the client or the node has too many of them in flight
+     */
+    private void receive(ClientResponse message, TCPClient client) {
+        String text = message.getMessage();
+        if (Membership.HEARTBEAT.equals(text)) {
+            this.membership.heartbeat(client);
+            return;
+        }
+
+        if (text == null) {
+            this.incomingTransfers.remove(client);
+            this.scheduler.submit(message, client, Scheduler.COMPLETION);
+            return;
+        }
+
+        // Messages the node sends before HELLO-NODE is handled are node traffic as well, they are not admitted
+        if (text.startsWith("HELLO-NODE") && !this.sessions.contains(client)) {
+            this.joining.add(client);
+        }
+
+        // Records of a bulk transfer are collected on its connection thread, only storing them is scheduled
+        BulkTransfer.Incoming incoming = this.incomingTransfers.get(client);
+        try {
+            if (incoming != null && !text.equals(BulkTransfer.END)) {
+                incoming.add(text);
+                return;
+            }
+
+            if (text.startsWith(BulkTransfer.BEGIN)) {
+                incoming = new BulkTransfer.Incoming(text);
+                if (this.draining && incoming.getMode().equals(BulkTransfer.HANDOFF)) {
+                    client.send("ERROR Terminating");
+                    client.close();
+                    return;
+                }
+                this.incomingTransfers.put(client, incoming);
+                return;
+            }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            this.incomingTransfers.remove(client);
+            client.send("ERROR Invalid arguments");
+            client.close();
+            return;
+        }
+
+        if (this.isNode(client)) {
+            if (this.udp != null && !this.udp.firstDelivery(client, text)) return;
+            this.receiveFromNode(message, client);
+            return;
+        }
+
+        // Requests from a session start with a tag
+        boolean session = this.sessions.contains(client);
+        String command = session ? text.substring(text.indexOf(' ') + 1) : text;
+        if (isControl(command)) {
+            this.scheduler.submit(message, client, Scheduler.NODE_REQUEST);
+            return;
         }
+
+        if (!this.scheduler.admit(client)) {
+            if (session) {
+                client.send(String.format("%s ERROR Busy", text.split(" ")[0]));
+            } else {
+                client.send("ERROR Busy");
+                client.close();
+            }
+            return;
+        }
+
+        this.scheduler.submit(message, client, Scheduler.CLIENT_REQUEST);
+    }
+
+    /**
+     * @param message - message from another node, over TCP or UDP
+     * @param client  - node that sent the message
+     */
+    private void receiveFromNode(ClientResponse message, TCPClient client) {
+        this.scheduler.submit(message, client, isCompletion(message.getMessage()) ? Scheduler.COMPLETION : Scheduler.NODE_REQUEST);
+    }
+
+    /**
+     * @param command - command from a client
+     * @return Whether the command connects a node or stores a bulk transfer, these are not limited by the scheduler
+     */
+    private static boolean isControl(String command) {
+        return command.startsWith("HELLO-") || command.equals(BulkTransfer.END);
+    }
+
+    /**
+     * @param message - message from another node
+     * @return Whether the message finishes a request instead of starting one
+     */
+    private static boolean isCompletion(String message) {
+        String verb = message.split(" ")[0];
+        return verb.startsWith("RETURN") || verb.equals("ERROR") || verb.equals("REPLICATED")
+                || verb.equals("EVENT") || verb.equals("UNWATCH") || verb.equals("HELLO-ACK");
+    }
+
+    /**
+     * @param client - connection that sent a message
+     * @return Whether the connection is a node, or a node this node connected to that did not answer HELLO-NODE yet
+     */
+    private boolean isNode(TCPClient client) {
+        return this.clients.containsKey(client.getNodeInfo()) || this.awaitingHandshake.contains(client)
+                || this.joining.contains(client) || this.removedNodes.contains(client);
     }
 
     private synchronized void handleMessage(ClientResponse message, TCPClient client) {
         System.out.printf("Received message from client: %s, %s%n", message.getPort(), message.getMessage());
-        if (this.clients.containsKey(message.getPort())) {
+        // Messages a removed node sent before it was removed are neither node messages nor client commands
+        if (this.removedNodes.contains(client)) {
+            if (message.getMessage() == null) {
+                this.removedNodes.remove(client);
+            }
+            return;
+        }
+        if (this.isNode(client)) {
             this.handleNodeMessage(message.getMessage(), client);
         } else {
             this.handleClientMessage(message, client);
@@ -97,17 +435,60 @@ public class Node {
         System.out.printf("Received message from node: %s%n", message);
         if (message == null) {
             System.out.println("Node disconnected");
-            this.clients.remove(tcpClient.getPort());
-            tcpClient.close();
+            this.removeNode(tcpClient, true);
+            // Nothing is received after the end of the stream
+            this.removedNodes.remove(tcpClient);
             return;
         }
 
         String[] parts = message.split(" ");
+        if (parts[0].equals("HELLO-NODE")) {
+            this.acceptNode(tcpClient, parts);
+            return;
+        }
+        if (parts[0].equals("HELLO-ACK")) {
+            this.completeHandshake(tcpClient, parts);
+            return;
+        }
+
         String verb = parts[0];
         String ID = parts[1];
         // rest of the message
         String msg = message.substring(verb.length() + ID.length() + 2);
 
+        if (this.forwardedWrites.containsKey(ID)) {
+            this.finishForwardedWrite(ID, verb, msg);
+            return;
+        }
+
+        // Watch events travel on an already answered ID, so they must skip the response cache
+        if (verb.equals("EVENT") || verb.equals("UNWATCH")) {
+            this.handleWatchMessage(verb, ID, msg, tcpClient);
+            return;
+        }
+
+        if (verb.equals("INVALIDATE")) {
+            this.handleInvalidation(ID, Integer.parseInt(msg), tcpClient);
+            return;
+        }
+
+        if (verb.equals("REPLICATE") || verb.equals("REPLICATED") || verb.equals("UNREPLICATE")) {
+            this.handleReplication(verb, ID, msg, tcpClient);
+            return;
+        }
+
+        if (verb.equals("AGGREGATE") && this.aggregations.containsKey(ID)) {
+            // This node is already counted through another node, so its value must not be sent twice
+            tcpClient.send(String.format("RETURN-AGGREGATE %s %s", ID, this.aggregations.get(ID).empty()));
+            return;
+        }
+
+        // The request came back around a loop of nodes, this node already asks all of its nodes itself
+        if (this.IDsOriginatedFromThisNode.contains(ID) && !isCompletion(message)) {
+            tcpClient.send(String.format("ERROR %s ERROR: Not found", ID));
+            return;
+        }
+
         if (this.responseCache.containsKey(ID) && !verb.startsWith("RETURN")) {
             System.out.printf("Found key: %s in cache%n", this.responseCache.get(ID));
             this.respond(ID, this.returnResponse(ID, this.responseCache.get(ID)));
@@ -125,11 +506,9 @@ public class Node {
                     this.addClientToRespond(ID, tcpClient);
                     this.getValue(Integer.parseInt(msg), ID);
                     break;
-                case "GET-MAX":
-                    this.handleMinMax(ID, tcpClient, "MAX");
-                    break;
-                case "GET-MIN":
-                    this.handleMinMax(ID, tcpClient, "MIN");
+                case "AGGREGATE":
+                    this.addClientToRespond(ID, tcpClient);
+                    this.aggregate(msg, ID);
                     break;
                 case "SET":
                     this.addClientToRespond(ID, tcpClient);
@@ -139,18 +518,34 @@ public class Node {
                     this.addClientToRespond(ID, tcpClient);
                     this.findKey(Integer.parseInt(msg), ID);
                     break;
+                case "WATCH":
+                    this.addClientToRespond(ID, tcpClient);
+                    this.watchUpstream.putIfAbsent(ID, tcpClient);
+                    this.watchKey(Integer.parseInt(msg), ID);
+                    break;
                 case "RETURN":
                     this.waitingForResponseFrom.get(ID).clear();
+                    if (this.watchUpstream.containsKey(ID)) {
+                        this.watchDownstream.putIfAbsent(ID, tcpClient);
+                    }
+                    if (this.nearCacheReads.remove(ID) != null) {
+                        String[] keyValue = msg.split(":");
+                        this.nearCache.put(Integer.parseInt(keyValue[0]), Integer.parseInt(keyValue[1]));
+                    }
                     this.respond(ID, this.returnResponse(ID, msg));
                     break;
-                case "RETURN-MAX":
-                    this.handleMax(ID, msg);
-                    break;
-                case "RETURN-MIN":
-                    this.handleMin(ID, msg);
+                case "RETURN-AGGREGATE":
+                    this.handleAggregate(ID, msg);
                     break;
                 case "ERROR":
+                    if (this.partials.containsKey(ID)) {
+                        this.failAggregation(ID);
+                        break;
+                    }
                     if (this.waitingForResponseFrom.containsKey(ID) && !this.waitingForResponseFrom.get(ID).isEmpty()) return;
+                    if (!this.watchDownstream.containsKey(ID)) {
+                        this.forgetWatch(ID);
+                    }
                     this.respond(ID, this.returnResponse(ID, msg, "ERROR"));
                     break;
                 default:
@@ -169,61 +564,125 @@ public class Node {
         this.clientsToRespond.get(id).add(tcpClient);
     }
 
-    private void handleMinMax(String ID, TCPClient tcpClient, String type) {
-        String returnMsg = String.format("RETURN-%s", type);
-        if (this.IDsOriginatedFromThisNode.contains(ID)) {
-            tcpClient.send(this.returnResponse(ID, String.valueOf(this.record.getValue()), returnMsg));
-        }
-
-        this.addClientToRespond(ID, tcpClient);
-        this.getMinMax(ID, type);
-    }
-
     private synchronized void handleClientMessage(ClientResponse message, TCPClient client) {
         System.out.printf("Received message from client: %s%n", message.getMessage());
 
         if (message.getMessage() == null) {
             System.out.println("Client disconnected");
             client.close();
-            this.clients.remove(message.getPort());
+            this.sessions.remove(client);
+            this.dropWatchesVia(client);
             return;
         }
 
-        String[] parts = message.getMessage().split(" ");
-        String ID;
+        String command = message.getMessage();
+        if (this.sessions.contains(client)) {
+            int tagEnd = command.indexOf(' ');
+            if (tagEnd < 0) {
+                client.send("ERROR Invalid arguments");
+                this.scheduler.release(client);
+                return;
+            }
+
+            client = new TaggedClient(client, command.substring(0, tagEnd));
+            command = command.substring(tagEnd + 1);
+        }
+
+        String[] parts = command.split(" ");
+        String ID = null;
         try {
             switch (parts[0]) {
-                case "HELLO-NODE":
-                    if (!this.clients.containsKey(message.getPort())) {
-                        this.clients.put(message.getPort(), client);
-                        System.out.println(this.clients);
-                    }
+                case "BULK-END":
+                    this.storeTransfer(this.incomingTransfers.remove(client), client);
+                    break;
+                case "HELLO-CLIENT":
+                    this.sessions.add(client);
+                    client.send("OK");
                     break;
                 case "get-value":
+                    int key = Integer.parseInt(parts[1]);
+                    boolean fresh = parts.length > 2 && parts[2].equals("fresh");
+                    if (this.nearCache.isEnabled() && this.findRecord(key) == null && !fresh) {
+                        Integer cached = this.nearCache.get(key);
+                        if (cached != null) {
+                            client.send(String.format("%d:%d", key, cached));
+                            client.close();
+                            break;
+                        }
+                    }
+
+                    ID = this.joinInFlight(String.format("get-value %d", key), client);
+                    if (ID != null) break;
+
                     ID = this.getRootID(client);
-                    this.getValue(Integer.parseInt(parts[1]), ID);
+                    this.markInFlight(String.format("get-value %d", key), ID);
+                    if (this.nearCache.isEnabled()) {
+                        this.nearCacheReads.put(ID, key);
+                    }
+                    this.getValue(key, ID);
                     break;
-                case "new-record":
-                    client.send(this.newRecord(parts[1]));
+                case "cache-stats":
+                    client.send(this.nearCache.toString());
                     client.close();
                     break;
+                case "new-record":
+                    if (this.handOffTarget != null) {
+                        client.send("ERROR Terminating");
+                        client.close();
+                        break;
+                    }
+                    ID = this.getRootID(client);
+                    this.newRecord(parts[1], ID);
+                    break;
                 case "set-value":
                     ID = this.getRootID(client);
                     this.setValue(parts[1], ID);
                     break;
                 case "find-key":
+                    String operation = String.format("find-key %d", Integer.parseInt(parts[1]));
+                    ID = this.joinInFlight(operation, client);
+                    if (ID != null) break;
+
                     ID = this.getRootID(client);
+                    this.markInFlight(operation, ID);
                     this.findKey(Integer.parseInt(parts[1]), ID);
                     break;
                 case "get-max":
+                case "get-min":
+                case "get-count":
+                case "get-sum":
+                case "get-avg":
+                case "get-top":
+                case "get-quantile":
+                case "get-histogram":
+                    // get-top 3 -> top:3
+                    String spec = parts[0].substring("get-".length()) + (parts.length > 1 ? ":" + parts[1] : "");
+                    Aggregators.fromSpec(spec);
+                    ID = this.joinInFlight(String.format("aggregate %s", spec), client);
+                    if (ID != null) break;
+
+                    ID = this.getRootID(client);
+                    this.markInFlight(String.format("aggregate %s", spec), ID);
+                    this.aggregate(spec, ID);
+                    break;
+                case "watch":
+                    int watchedKey = Integer.parseInt(parts[1]);
                     ID = this.getRootID(client);
-                    this.getMinMax(ID, "MAX");
+                    this.watchUpstream.put(ID, client);
+                    this.watchKey(watchedKey, ID);
+                    break;
+                case "ready":
+                    client.send(this.ready ? "OK" : "ERROR Not ready");
+                    client.close();
                     break;
-               case "get-min":
-                   ID = this.getRootID(client);
-                   this.getMinMax(ID, "MIN");
-                   break;
                 case "terminate":
+                    if (this.draining) {
+                        client.send("ERROR Terminating");
+                        client.close();
+                        break;
+                    }
+                    if (this.handOff(client)) break;
+
                     System.out.println("Terminating");
                     System.exit(0);
                 default:
@@ -231,62 +690,112 @@ public class Node {
                     client.close();
             }
         } catch (Exception e) {
+            if (ID != null) {
+                this.clientsToRespond.remove(ID);
+                ID = null;
+            }
             client.send("ERROR Invalid arguments");
             client.close();
         }
+
+        // Commands that did not start or join a request are finished already
+        if (ID == null && !isControl(parts[0])) {
+            this.scheduler.release(client.getConnection());
+        }
     }
 
     /**
-     * @param ID  - ID of request
-     * @param msg - node max value
+     * get-max, get-min, get-count, ... - starts or joins an aggregation over the whole network
+     *
+     * @param spec - aggregator spec, e.g. max or top:3
+     * @param ID   - ID of request used to cache the response
      */
-    private void handleMax(String ID, String msg) {
-        System.out.printf("Received max value from node: %s%n", msg);
-        int max = Integer.parseInt(msg);
-        if (this.minMaxCache.get(ID) < max) {
-            this.minMaxCache.put(ID, max);
-        }
+    private void aggregate(String spec, String ID) {
+        System.out.printf("Aggregating %s. ID %s%n", spec, ID);
+        Aggregator aggregator = Aggregators.fromSpec(spec);
+        this.aggregations.put(ID, aggregator);
+        this.partials.put(ID, this.ownPartial(aggregator));
+
+        this.poll(ID, "AGGREGATE", spec);
 
         if (this.waitingForResponseFrom.get(ID).isEmpty()) {
-            this.respond(ID, this.returnResponse(ID, String.valueOf(this.minMaxCache.get(ID)), "RETURN-MAX"));
+            this.completeAggregation(ID);
         }
     }
 
     /**
-     * @param ID  - ID of request
-     * @param msg - node max value
+     * @param aggregator - aggregator of the request
+     * @return Partial state of the records this node owns
      */
-    private void handleMin(String ID, String msg) {
-        System.out.printf("Received min value from node: %s%n", msg);
-        int min = Integer.parseInt(msg);
-        if (this.minMaxCache.get(ID) > min) {
-            this.minMaxCache.put(ID, min);
+    private String ownPartial(Aggregator aggregator) {
+        String partial = aggregator.empty();
+        for (NodeRecord record : this.ownedRecords()) {
+            partial = aggregator.merge(partial, aggregator.of(record));
         }
+        return partial;
+    }
+
+    /**
+     * @param ID      - ID of request
+     * @param partial - partial state of the node that responded
+     */
+    private void handleAggregate(String ID, String partial) {
+        System.out.printf("Received partial state from node: %s%n", partial);
+        if (!this.partials.containsKey(ID)) return;
+
+        this.partials.put(ID, this.aggregations.get(ID).merge(this.partials.get(ID), partial));
 
         if (this.waitingForResponseFrom.get(ID).isEmpty()) {
-            this.respond(ID, this.returnResponse(ID, String.valueOf(this.minMaxCache.get(ID)), "RETURN-MIN"));
+            this.completeAggregation(ID);
         }
     }
 
     /**
-     * get-max-key - returns the maximum value in the network
-     * get-min-key - returns the minimum value in the network
+     * Responds with an error instead of the result, a node that did not send its partial state is not counted
+     * and the result would look like a correct one
      *
-     * @param ID - ID of request used to cache the response
+     * @param ID - ID of request
      */
-    private void getMinMax(String ID, String type) {
-        System.out.printf("Searching for %s key. ID %s%n", type, ID);
-        if (!this.minMaxCache.containsKey(ID)) {
-            this.minMaxCache.put(ID, this.record.getValue());
-        }
+    private void failAggregation(String ID) {
+        this.partials.remove(ID);
+        this.respond(ID, this.returnResponse(ID, "ERROR: Node lost", "ERROR"));
+    }
 
-        this.poll(ID, String.format("GET-%s", type), "");
+    /**
+     * Sends the merged partial state, or the result if the request started on this node
+     *
+     * @param ID - ID of request
+     */
+    private void completeAggregation(String ID) {
+        String partial = this.partials.remove(ID);
+        String response = this.IDsOriginatedFromThisNode.contains(ID) ? this.aggregations.get(ID).result(partial) : partial;
+        this.respond(ID, this.returnResponse(ID, response, "RETURN-AGGREGATE"));
+    }
 
-        String returnMsg = String.format("RETURN-%s", type);
+    /**
+     * Attaches the client to an identical request that is already waiting for the network,
+     * so all clients get the same response and the network is asked only once
+     *
+     * @param operation - command and its arguments, e.g. get-value 17
+     * @param client    - client that sent the command
+     * @return ID of the request or null when there is none
+     */
+    private String joinInFlight(String operation, TCPClient client) {
+        String ID = this.inFlight.get(operation);
+        if (ID == null) return null;
 
-        if (this.waitingForResponseFrom.get(ID).isEmpty()) {
-            this.respond(ID, this.returnResponse(ID, String.valueOf(this.minMaxCache.get(ID)), returnMsg));
-        }
+        System.out.printf("Joining request: %s. ID %s%n", operation, ID);
+        this.addClientToRespond(ID, client);
+        return ID;
+    }
+
+    /**
+     * @param operation - command and its arguments, e.g. get-value 17
+     * @param ID        - ID of the request, removed when it is responded to
+     */
+    private void markInFlight(String operation, String ID) {
+        this.inFlight.put(operation, ID);
+        this.inFlightOperations.put(ID, operation);
     }
 
     private String getRootID(TCPClient client) {
@@ -329,7 +838,7 @@ public class Node {
      */
     private void findKey(int key, String ID) {
         System.out.printf("Searching for key: %s%n", key);
-        if (this.record.has(key)) {
+        if (this.findOwned(key) != null) {
             System.out.printf("Found key: %s%n", key);
             this.respond(ID, this.returnResponse(ID, this.server.toString()));
             return;
@@ -354,9 +863,17 @@ public class Node {
         int value = Integer.parseInt(parts[1]);
         System.out.printf("Setting key: %d to value %d. ID %s%n", key, value, ID);
 
-        if (this.record.has(key)) {
-            this.record.setValue(part);
-            this.respond(ID, this.returnResponse(ID, "OK"));
+        if (this.forwardedKeys.contains(key)) {
+            this.forwardWrite(ID, part);
+            return;
+        }
+
+        NodeRecord owned = this.findOwned(key);
+        if (owned != null) {
+            owned.setValue(part);
+            this.notifyWatchers(key);
+            this.invalidateNearCaches(key);
+            this.replicate(ID, owned.toString());
             return;
         }
 
@@ -375,9 +892,10 @@ public class Node {
      */
     private void getValue(int key, String ID) {
         System.out.printf("Searching for key: %s. ID %s%n", key, ID);
-        if (this.record.has(key)) {
+        NodeRecord found = this.findRecord(key);
+        if (found != null) {
             System.out.printf("Found key: %s%n", key);
-            this.respond(ID, this.returnResponse(ID, this.record.toString()));
+            this.respond(ID, this.returnResponse(ID, found.toString()));
             return;
         }
 
@@ -389,14 +907,621 @@ public class Node {
     }
 
     /**
-     * set-value <key>:<value>
+     * new-record <key>:<value>
      *
      * @param keyValue - key:value to set
-     * @return OK response
+     * @param ID       - ID of request used to respond once the copies are updated
      */
-    private String newRecord(String keyValue) {
+    private void newRecord(String keyValue, String ID) {
+        int oldKey = this.record.getKey();
         this.record.setValue(keyValue);
-        return "OK";
+
+        if (oldKey != this.record.getKey()) {
+            this.dropWatchers(oldKey);
+            this.invalidateNearCaches(oldKey);
+        }
+        this.notifyWatchers(this.record.getKey());
+        this.invalidateNearCaches(this.record.getKey());
+        this.replicate(ID, oldKey != this.record.getKey() ? String.format("%s %d", this.record, oldKey) : this.record.toString());
+    }
+
+    /**
+     * @param key - key to find
+     * @return Record of this node, a record it adopted or took over with the key, null if there is none
+     */
+    private NodeRecord findOwned(int key) {
+        for (NodeRecord record : this.ownedRecords()) {
+            if (record.has(key)) return record;
+        }
+        return null;
+    }
+
+    /**
+     * @return Record of this node, the records it adopted, then the copies it took over from nodes that are gone
+     */
+    private List<NodeRecord> ownedRecords() {
+        List<NodeRecord> records = new ArrayList<>();
+        if (this.handedOff) return records;
+
+        records.add(this.record);
+        records.addAll(this.adopted.values());
+        for (NodeInfo primary : this.takenOver) {
+            records.addAll(this.replicas.get(primary).values());
+        }
+        return records;
+    }
+
+    /**
+     * @return Copies of the records this node owns, they do not change while they are sent
+     */
+    private List<NodeRecord> snapshot() {
+        List<NodeRecord> snapshot = new ArrayList<>();
+        for (NodeRecord record : this.ownedRecords()) {
+            snapshot.add(new NodeRecord(record.getKey(), record.getValue()));
+        }
+        return snapshot;
+    }
+
+    /**
+     * @param key - key to find
+     * @return Record this node owns or a copy of another node's record with the key, null if there is none
+     */
+    private NodeRecord findRecord(int key) {
+        NodeRecord owned = this.findOwned(key);
+        if (owned != null) return owned;
+
+        for (Map<Integer, NodeRecord> copies : this.replicas.values()) {
+            if (copies.containsKey(key)) return copies.get(key);
+        }
+        return null;
+    }
+
+    /**
+     * @return Connected nodes sorted by address
+     */
+    private List<TCPClient> nodesByAddress() {
+        List<TCPClient> nodes = new ArrayList<>(this.clients.values());
+        nodes.sort(Comparator.comparing(node -> node.getNodeInfo().toString()));
+        return nodes;
+    }
+
+    /**
+     * @return Nodes that keep copies of the records, the first replicationFactor nodes by address
+     */
+    private List<TCPClient> replicaTargets() {
+        List<TCPClient> nodes = this.nodesByAddress();
+        return nodes.subList(0, Math.min(this.replicationFactor, nodes.size()));
+    }
+
+    /**
+     * Sends the changed record to the nodes that keep its copies and responds OK,
+     * with sync replication only once all of them confirmed it
+     *
+     * @param ID     - ID of request that changed the record
+     * @param change - key:value of the record, followed by the old key when the key changed
+     */
+    private void replicate(String ID, String change) {
+        List<TCPClient> targets = this.replicaTargets();
+        // A suspected node still gets the change, but the write does not wait for it
+        Set<TCPClient> acks = new HashSet<>(targets);
+        acks.removeIf(this.membership::isSuspected);
+        if (this.syncReplication && !acks.isEmpty()) {
+            this.replicaAcks.put(ID, acks);
+            for (TCPClient target : targets) {
+                this.sendReplica(target, String.format("REPLICATE %s %s", ID, change));
+            }
+            return;
+        }
+
+        String replicationID = this.getRandomID();
+        for (TCPClient target : targets) {
+            this.sendReplica(target, String.format("REPLICATE %s %s", replicationID, change));
+        }
+        this.respond(ID, this.returnResponse(ID, "OK"));
+    }
+
+    /**
+     * @param target  - node that keeps the copies
+     * @param message - REPLICATE message, it waits while records are streamed to the node
+     */
+    private void sendReplica(TCPClient target, String message) {
+        List<String> pending = this.pendingReplicas.get(target);
+        if (pending != null) {
+            pending.add(message);
+            return;
+        }
+
+        target.send(message);
+    }
+
+    /**
+     * Compares the nodes that keep copies with replicaTargets, new ones get all records streamed,
+     * the first one is the successor that takes writes for the records once this node is gone,
+     * nodes that are not targets anymore are told to drop their copies
+     *
+     * @param restream - whether all targets get the records again, used when the records this node owns changed
+     */
+    private void refreshReplicas(boolean restream) {
+        List<TCPClient> targets = this.replicaTargets();
+        for (TCPClient holder : this.copyHolders) {
+            if (targets.contains(holder) || !this.clients.containsValue(holder)) continue;
+            holder.send(String.format("UNREPLICATE %s ", this.getRandomID()));
+        }
+
+        for (int i = 0; i < targets.size(); i++) {
+            TCPClient target = targets.get(i);
+            boolean wasSuccessor = !this.copyHolders.isEmpty() && this.copyHolders.get(0) == target;
+            if (restream || !this.copyHolders.contains(target) || wasSuccessor != (i == 0)) {
+                this.replicateTo(target, i == 0);
+            }
+        }
+        this.copyHolders = new ArrayList<>(targets);
+    }
+
+    /**
+     * Streams the records to a node that keeps their copies, records that change after the last of them was written
+     * are sent with REPLICATE once the node stored the stream, otherwise the stream would replace them
+     *
+     * @param client    - node that keeps the copies
+     * @param successor - whether the node takes writes for the records once this node is gone
+     */
+    private void replicateTo(TCPClient client, boolean successor) {
+        NodeInfo target = this.listenAddresses.get(client);
+        if (target == null) return;
+
+        String mode = successor ? BulkTransfer.SUCCESSOR : BulkTransfer.REPLICA;
+        List<NodeRecord> snapshot = this.snapshot();
+        new Thread(() -> {
+            try (BulkTransfer transfer = new BulkTransfer(target, mode, this.server.getPort())) {
+                transfer.write(snapshot);
+                synchronized (this) {
+                    transfer.writeChanges(snapshot, this.snapshot());
+                    this.pendingReplicas.putIfAbsent(client, new ArrayList<>());
+                }
+                transfer.end();
+                transfer.awaitStored();
+            } catch (IOException e) {
+                System.out.printf("Could not send copies to %s: %s%n", target, e.getMessage());
+            }
+
+            synchronized (this) {
+                List<String> pending = this.pendingReplicas.remove(client);
+                if (pending == null) return;
+
+                for (String replica : pending) {
+                    client.send(replica);
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * terminate - streams the records to another node in the background and terminates once it stored them.
+     * Requests are served as usual meanwhile and records that changed are sent again at the end,
+     * writes that arrive after that wait until the other node stored the records and are then sent to it,
+     * if the transfer fails they are applied here, so the records have one owner at any time
+     *
+     * @param client - client that sent terminate, it gets OK before the node terminates
+     * @return Whether the hand off started, false when there is no node to take the records
+     */
+    private boolean handOff(TCPClient client) {
+        List<TCPClient> nodes = this.nodesByAddress();
+        if (nodes.isEmpty() || !this.listenAddresses.containsKey(nodes.get(0))) return false;
+
+        // The first node by address is also the first one that keeps copies
+        NodeInfo target = this.listenAddresses.get(nodes.get(0));
+        List<NodeRecord> snapshot = this.snapshot();
+        this.draining = true;
+        System.out.printf("Handing off %d records to %s%n", snapshot.size(), target);
+
+        new Thread(() -> {
+            try (BulkTransfer transfer = new BulkTransfer(target, BulkTransfer.HANDOFF, this.server.getPort())) {
+                transfer.write(snapshot);
+                synchronized (this) {
+                    transfer.writeChanges(snapshot, this.snapshot());
+                    this.handOffTarget = nodes.get(0);
+                    for (NodeRecord record : this.ownedRecords()) {
+                        this.forwardedKeys.add(record.getKey());
+                    }
+                }
+                transfer.end();
+                if (transfer.awaitStored()) {
+                    this.finishHandOff(client);
+                    return;
+                }
+            } catch (IOException e) {
+                System.out.printf("Could not hand off records to %s: %s%n", target, e.getMessage());
+            }
+
+            this.rollBackHandOff(client);
+        }).start();
+        return true;
+    }
+
+    /**
+     * The other node owns the records, writes that waited are sent to it and the node terminates once they are answered
+     *
+     * @param client - client that sent terminate
+     */
+    private synchronized void finishHandOff(TCPClient client) {
+        this.handedOff = true;
+        System.out.println("Terminating");
+        client.send("OK");
+
+        for (String[] write : this.heldWrites) {
+            this.forwardWrite(write[0], write[1]);
+        }
+        this.heldWrites.clear();
+        if (this.forwardedWrites.isEmpty()) {
+            System.exit(0);
+        }
+
+        this.watchTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                System.exit(0);
+            }
+        }, FORWARD_TIMEOUT_MS);
+    }
+
+    /**
+     * The other node did not store the records, so this node keeps them and applies the writes that waited
+     *
+     * @param client - client that sent terminate
+     */
+    private synchronized void rollBackHandOff(TCPClient client) {
+        this.draining = false;
+        this.handOffTarget = null;
+        this.forwardedKeys.clear();
+        List<String[]> writes = new ArrayList<>(this.heldWrites);
+        this.heldWrites.clear();
+        for (String[] write : writes) {
+            this.setValue(write[1], write[0]);
+        }
+
+        client.send("ERROR Could not hand off records");
+        client.close();
+    }
+
+    /**
+     * Write of a record that is handed off, it waits until the other node stored the records
+     *
+     * @param ID   - ID of request
+     * @param part - key:value
+     */
+    private void forwardWrite(String ID, String part) {
+        if (!this.handedOff) {
+            this.heldWrites.add(new String[]{ID, part});
+            return;
+        }
+        if (!this.clients.containsValue(this.handOffTarget)) {
+            this.respond(ID, this.returnResponse(ID, "ERROR: Not found", "ERROR"));
+            return;
+        }
+
+        // A new ID, the other node may have sent the request itself
+        String forwardID = this.getRandomID();
+        System.out.printf("Forwarding write %s to %s. ID %s%n", part, this.handOffTarget.getNodeInfo(), forwardID);
+        this.forwardedWrites.put(forwardID, ID);
+        this.handOffTarget.send(String.format("SET %s %s", forwardID, part));
+    }
+
+    /**
+     * RETURN or ERROR of a write that was sent to the node that took the records
+     *
+     * @param forwardID - ID the write was sent with
+     * @param verb      - RETURN or ERROR
+     * @param msg       - response of the node
+     */
+    private void finishForwardedWrite(String forwardID, String verb, String msg) {
+        String ID = this.forwardedWrites.remove(forwardID);
+        this.respond(ID, verb.equals("ERROR") ? this.returnResponse(ID, msg, "ERROR") : this.returnResponse(ID, msg));
+        if (this.forwardedWrites.isEmpty()) {
+            System.exit(0);
+        }
+    }
+
+    /**
+     * BULK-END - stores the records of a bulk transfer
+     * handoff - this node becomes their owner and streams them to the nodes that keep its copies
+     * replica, successor - they replace the copies of the node that sent them,
+     * the successor also takes writes for them once the node is gone
+     *
+     * @param incoming - records that were received
+     * @param client   - connection of the transfer
+     */
+    private void storeTransfer(BulkTransfer.Incoming incoming, TCPClient client) {
+        Map<Integer, NodeRecord> records = incoming.getRecords();
+        if (incoming.getMode().equals(BulkTransfer.HANDOFF)) {
+            if (this.draining) {
+                client.send("ERROR Terminating");
+                return;
+            }
+
+            System.out.printf("Adopting %d records%n", records.size());
+            this.adopted.putAll(records);
+            for (Map<Integer, NodeRecord> copies : this.replicas.values()) {
+                copies.keySet().removeAll(records.keySet());
+            }
+            this.refreshReplicas(true);
+        } else {
+            NodeInfo sender = new NodeInfo(client.getNodeInfo().getAddress(), incoming.getPort());
+            if (!this.listenAddresses.containsValue(sender)) {
+                client.send("ERROR Unknown node");
+                return;
+            }
+
+            System.out.printf("Storing %d copies of %s (%s)%n", records.size(), sender, incoming.getMode());
+            this.replicas.put(sender, records);
+            if (incoming.getMode().equals(BulkTransfer.SUCCESSOR)) {
+                this.successorOf.add(sender);
+            } else {
+                this.successorOf.remove(sender);
+            }
+        }
+
+        client.send(String.format("OK %d", incoming.getLines()));
+    }
+
+    /**
+     * REPLICATE <ID> <key>:<value> [old key] - stores a copy of a record of the node that sent it
+     * REPLICATED <ID> - the node stored the copy
+     * UNREPLICATE <ID> - this node is not one of the nodes that keep copies of the sender anymore
+     *
+     * @param verb   - REPLICATE, REPLICATED or UNREPLICATE
+     * @param ID     - ID of request that changed the record
+     * @param msg    - key:value and the old key for REPLICATE
+     * @param client - node that sent the message
+     */
+    private void handleReplication(String verb, String ID, String msg, TCPClient client) {
+        NodeInfo primary = this.listenAddresses.getOrDefault(client, client.getNodeInfo());
+        if (verb.equals("UNREPLICATE")) {
+            System.out.printf("Dropping copies of %s%n", primary);
+            this.replicas.remove(primary);
+            this.successorOf.remove(primary);
+            return;
+        }
+
+        if (verb.equals("REPLICATE")) {
+            System.out.printf("Storing copy: %s. ID %s%n", msg, ID);
+            String[] change = msg.split(" ");
+            if (!this.replicas.containsKey(primary)) {
+                this.replicas.put(primary, new HashMap<>());
+            }
+            if (change.length > 1) {
+                this.replicas.get(primary).remove(Integer.parseInt(change[1]));
+            }
+
+            NodeRecord copy = new NodeRecord();
+            copy.setValue(change[0]);
+            this.replicas.get(primary).put(copy.getKey(), copy);
+            client.send(String.format("REPLICATED %s ", ID));
+            return;
+        }
+
+        this.acknowledgeReplica(ID, client);
+    }
+
+    /**
+     * Drops the copies of a node that connected again, it starts with its own record and streams its copies again
+     * if this node should keep them. Records this node took over from it are not its anymore either
+     *
+     * @param primary - address and TCP port of the node
+     */
+    private void forgetCopiesOf(NodeInfo primary) {
+        if (!this.replicas.containsKey(primary)) return;
+
+        System.out.printf("Dropping copies of %s, it connected again%n", primary);
+        boolean tookOver = this.takenOver.remove(primary);
+        this.successorOf.remove(primary);
+        this.replicas.remove(primary);
+        if (tookOver) {
+            this.refreshReplicas(true);
+        }
+    }
+
+    /**
+     * @param ID     - ID of request that changed the record
+     * @param client - node that stored the copy or was removed
+     */
+    private void acknowledgeReplica(String ID, TCPClient client) {
+        if (!this.replicaAcks.containsKey(ID) || !this.replicaAcks.get(ID).remove(client)) return;
+
+        if (this.replicaAcks.get(ID).isEmpty()) {
+            this.replicaAcks.remove(ID);
+            this.respond(ID, this.returnResponse(ID, "OK"));
+        }
+    }
+
+    /**
+     * Tells every node that the key changed, so near caches do not return the old value.
+     * Only nodes with the near cache enabled send it, the cache should be enabled on all nodes or none
+     *
+     * @param key - key that changed
+     */
+    private void invalidateNearCaches(int key) {
+        if (!this.nearCache.isEnabled()) return;
+
+        String ID = this.getRandomID();
+        this.seenInvalidations.add(ID);
+        for (TCPClient client : this.clients.values()) {
+            client.send(String.format("INVALIDATE %s %d", ID, key));
+        }
+    }
+
+    /**
+     * INVALIDATE <ID> <key> - removes the key from the near cache and forwards the message to the other nodes
+     *
+     * @param ID     - ID of the invalidation
+     * @param key    - key that changed
+     * @param client - node that sent the message
+     */
+    private void handleInvalidation(String ID, int key, TCPClient client) {
+        if (!this.seenInvalidations.add(ID)) return;
+
+        System.out.printf("Invalidating key: %s. ID %s%n", key, ID);
+        this.nearCache.invalidate(key);
+        // Reads that are still on their way may carry the old value
+        this.nearCacheReads.values().removeIf(pending -> pending == key);
+
+        for (TCPClient node : this.clients.values()) {
+            if (node == client) continue;
+            node.send(String.format("INVALIDATE %s %d", ID, key));
+        }
+    }
+
+    /**
+     * watch <key>
+     * Registers the subscription on the node that owns the key, every node on the way remembers
+     * who asked (upstream) and who answered (downstream) so events and cleanup can follow the same path
+     *
+     * @param key - key to watch
+     * @param ID  - ID of the subscription
+     */
+    private void watchKey(int key, String ID) {
+        System.out.printf("Watching key: %s. ID %s%n", key, ID);
+        NodeRecord owned = this.findOwned(key);
+        if (owned != null) {
+            if (!this.watchers.containsKey(key)) {
+                this.watchers.put(key, new HashSet<>());
+            }
+            this.watchers.get(key).add(ID);
+            this.respond(ID, this.returnResponse(ID, owned.toString()));
+            return;
+        }
+
+        this.poll(ID, "WATCH", String.valueOf(key));
+
+        if (this.waitingForResponseFrom.get(ID).isEmpty()) {
+            this.forgetWatch(ID);
+            this.respond(ID, this.returnResponse(ID, "ERROR: Not found", "ERROR"));
+        }
+    }
+
+    /**
+     * EVENT <ID> <key>:<value> - forwarded towards the client that started the watch
+     * UNWATCH <ID> - forwarded to the other side of the path and removes the subscription
+     *
+     * @param verb   - EVENT or UNWATCH
+     * @param ID     - ID of the subscription
+     * @param msg    - key:value for events
+     * @param client - node that sent the message
+     */
+    private void handleWatchMessage(String verb, String ID, String msg, TCPClient client) {
+        if (verb.equals("UNWATCH")) {
+            this.releaseWatch(ID, client);
+            return;
+        }
+
+        TCPClient upstream = this.watchUpstream.get(ID);
+        if (upstream == null) {
+            System.out.printf("No subscription with ID: %s%n", ID);
+            client.send(String.format("UNWATCH %s ", ID));
+            return;
+        }
+
+        upstream.send(this.returnResponse(ID, msg, "EVENT"));
+    }
+
+    /**
+     * Schedules an event for the watchers of the key, changes that happen before it is sent are coalesced into one
+     *
+     * @param key - key that changed
+     */
+    private void notifyWatchers(int key) {
+        if (!this.watchers.containsKey(key) || !this.pendingWatchEvents.add(key)) return;
+
+        this.watchTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                flushWatchEvents(key);
+            }
+        }, WATCH_COALESCE_MS);
+    }
+
+    /**
+     * Sends the latest value of the key to all of its watchers
+     *
+     * @param key - key that changed
+     */
+    private synchronized void flushWatchEvents(int key) {
+        this.pendingWatchEvents.remove(key);
+        NodeRecord owned = this.findOwned(key);
+        if (owned == null || !this.watchers.containsKey(key)) return;
+
+        for (String ID : this.watchers.get(key)) {
+            System.out.printf("Sending event for key: %s. ID %s%n", key, ID);
+            this.watchUpstream.get(ID).send(this.returnResponse(ID, owned.toString(), "EVENT"));
+        }
+    }
+
+    /**
+     * Ends all subscriptions on the key, used when the record no longer holds it
+     *
+     * @param key - key that is gone
+     */
+    private void dropWatchers(int key) {
+        if (!this.watchers.containsKey(key)) return;
+
+        for (String ID : new ArrayList<>(this.watchers.get(key))) {
+            this.releaseWatch(ID, null);
+        }
+    }
+
+    /**
+     * Ends all subscriptions that go through the client, used when it disconnects
+     *
+     * @param client - client that disconnected
+     */
+    private void dropWatchesVia(TCPClient client) {
+        Set<String> IDs = new HashSet<>();
+        for (Map.Entry<String, TCPClient> entry : this.watchUpstream.entrySet()) {
+            if (entry.getValue().getConnection() == client) IDs.add(entry.getKey());
+        }
+        for (Map.Entry<String, TCPClient> entry : this.watchDownstream.entrySet()) {
+            if (entry.getValue() == client) IDs.add(entry.getKey());
+        }
+
+        for (String ID : IDs) {
+            this.releaseWatch(ID, client);
+        }
+    }
+
+    /**
+     * Removes the subscription and tells the other side of the path about it
+     *
+     * @param ID   - ID of the subscription
+     * @param from - client the release came from, it is not notified
+     */
+    private void releaseWatch(String ID, TCPClient from) {
+        TCPClient upstream = this.watchUpstream.get(ID);
+        TCPClient downstream = this.watchDownstream.get(ID);
+        System.out.printf("Releasing watch with ID: %s%n", ID);
+        this.forgetWatch(ID);
+
+        if (upstream != null && upstream.getConnection() != from) {
+            if (this.IDsOriginatedFromThisNode.contains(ID)) {
+                upstream.send("ERROR Watch lost");
+                this.close(upstream);
+            } else {
+                upstream.send(String.format("UNWATCH %s ", ID));
+            }
+        }
+
+        if (downstream != null && downstream != from) {
+            downstream.send(String.format("UNWATCH %s ", ID));
+        }
+    }
+
+    /**
+     * Removes the subscription from this node only
+     *
+     * @param ID - ID of the subscription
+     */
+    private void forgetWatch(String ID) {
+        this.watchUpstream.remove(ID);
+        this.watchDownstream.remove(ID);
+        this.watchers.values().removeIf(IDs -> IDs.remove(ID) && IDs.isEmpty());
     }
 
     /**
@@ -421,6 +1546,10 @@ public class Node {
      */
     private void respond(String ID, String response) {
         System.out.printf("Responding to client with ID: %s; With message: %s%n", ID, response);
+        this.nearCacheReads.remove(ID);
+        if (this.inFlightOperations.containsKey(ID)) {
+            this.inFlight.remove(this.inFlightOperations.remove(ID));
+        }
 
         if (!this.clientsToRespond.containsKey(ID)) {
             System.out.printf("Clients with ID: %s not found%n", ID);
@@ -428,9 +1557,17 @@ public class Node {
         }
 
         for (TCPClient client : this.clientsToRespond.get(ID)) {
-            client.send(response);
-            if (!response.contains(ID)) {
-                client.close();
+            if (this.IDsOriginatedFromThisNode.contains(ID) && !this.clients.containsKey(client.getNodeInfo())) {
+                this.scheduler.release(client.getConnection());
+            }
+            if (this.watchUpstream.containsKey(ID)) {
+                // Events of the watch are sent over TCP, so the first value must not overtake them
+                client.send(response);
+            } else {
+                this.sendToNode(client, response);
+            }
+            if (!response.contains(ID) && !this.watchUpstream.containsKey(ID)) {
+                this.close(client);
             }
 
             this.clientsToRespond.remove(ID);
@@ -451,17 +1588,129 @@ public class Node {
         }
 
         for (TCPClient client : this.clients.values()) {
+            if (this.membership.isSuspected(client)) continue;
             if (this.clientsToRespond.containsKey(ID) && this.clientsToRespond.get(ID).contains(client)) continue;
             if (this.waitingForResponseFrom.get(ID).contains(client)) continue;
             if (this.requestOrigin.get(ID) == client) continue;
 
             System.out.printf("Polling client: %s%n", client.getPort());
 
-            client.send(String.format("%s %s %s", verb, ID, message));
+            this.sendToNode(client, String.format("%s %s %s", verb, ID, message));
             this.waitingForResponseFrom.get(ID).add(client);
         }
     }
 
+    /**
+     * Sends small lookups over UDP when the node supports it, everything else over TCP
+     *
+     * @param client  - client or node to send the message to
+     * @param message - message to send
+     */
+    private void sendToNode(TCPClient client, String message) {
+        if (this.udp != null && this.udp.send(client, message)) return;
+
+        client.send(message);
+    }
+
+    /**
+     * Closes the connection of a client, a node is removed right away as well
+     *
+     * @param client - client or node to close
+     */
+    private void close(TCPClient client) {
+        if (this.clients.containsKey(client.getNodeInfo())) {
+            this.removeNode(client, false);
+            return;
+        }
+
+        client.close();
+    }
+
+    /**
+     * Removes a node whose connection ended or failed, requests that were only waiting for it are finished
+     *
+     * @param client - node to remove
+     * @param gone   - whether the node ended the connection, false when this node closed it and the node may still run
+     */
+    private synchronized void removeNode(TCPClient client, boolean gone) {
+        if (this.joining.remove(client) || this.awaitingHandshake.remove(client)) {
+            System.out.printf("Node closed the connection before the handshake finished: %s%n", client.getNodeInfo());
+            client.close();
+            return;
+        }
+        if (this.clients.remove(client.getNodeInfo()) == null) return;
+
+        System.out.printf("Removing node: %s%n", client.getNodeInfo());
+        this.removedNodes.add(client);
+        this.membership.leave(client);
+        if (this.udp != null) {
+            this.udp.unregister(client);
+        }
+        NodeInfo address = this.listenAddresses.remove(client);
+        this.pendingReplicas.remove(client);
+        client.close();
+        this.dropWatchesVia(client);
+
+        // Only the successor takes the records of a node that is gone, other copies are dropped so nobody reads old values
+        boolean tookOver = gone && address != null && this.replicas.containsKey(address) && this.successorOf.contains(address);
+        if (tookOver) {
+            System.out.printf("Taking writes for the records of %s%n", address);
+            this.takenOver.add(address);
+        } else if (address != null) {
+            this.replicas.remove(address);
+            this.successorOf.remove(address);
+        }
+        this.refreshReplicas(tookOver);
+        this.stopWaitingFor(client);
+    }
+
+    /**
+     * A node that is suspected to be dead keeps its connection but gets no new requests until it recovers,
+     * requests that were only waiting for it are finished
+     *
+     * @param client - suspected node
+     */
+    private synchronized void suspectNode(TCPClient client) {
+        if (!this.clients.containsValue(client)) return;
+
+        System.out.printf("Not sending requests to %s until it recovers%n", client.getNodeInfo());
+        this.stopWaitingFor(client);
+    }
+
+    /**
+     * @param client - node that sends heartbeats again
+     */
+    private synchronized void recoverNode(TCPClient client) {
+        System.out.printf("Sending requests to %s again%n", client.getNodeInfo());
+    }
+
+    /**
+     * Finishes the requests that were only waiting for the node, aggregations that wait for it fail
+     *
+     * @param client - node that was removed or is suspected
+     */
+    private void stopWaitingFor(TCPClient client) {
+        for (String ID : new ArrayList<>(this.replicaAcks.keySet())) {
+            this.acknowledgeReplica(ID, client);
+        }
+
+        for (Map.Entry<String, Set<TCPClient>> entry : new ArrayList<>(this.waitingForResponseFrom.entrySet())) {
+            String ID = entry.getKey();
+            if (!entry.getValue().remove(client)) continue;
+
+            if (this.partials.containsKey(ID)) {
+                this.failAggregation(ID);
+                continue;
+            }
+            if (!entry.getValue().isEmpty()) continue;
+
+            if (!this.watchDownstream.containsKey(ID)) {
+                this.forgetWatch(ID);
+            }
+            this.respond(ID, this.returnResponse(ID, "ERROR: Not found", "ERROR"));
+        }
+    }
+
     /**
      * Marks the client as responded
      *
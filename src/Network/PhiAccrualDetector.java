@@ -0,0 +1,74 @@
+package Network;
+
+import java.util.ArrayDeque;
+
+/**
+ * ---------------------------------------------------------------------------------------------------------------------
+ * PhiAccrualDetector
+ * ---------------------------------------------------------------------------------------------------------------------
+ * Failure detector for a single peer based on the heartbeat inter-arrival times.
+ * Instead of a fixed timeout it returns phi - how unlikely it is that the next heartbeat is still on its way,
+ * phi = 1 means 10% chance of a mistake, phi = 2 means 1%, phi = 3 means 0.1% and so on.
+ */
+public class PhiAccrualDetector {
+    private static final int MAX_SAMPLES = 100;
+    private static final double MIN_STD_DEVIATION_MS = 200;
+
+    private final ArrayDeque<Long> intervals;
+    private final long acceptablePauseMs;
+    private long lastHeartbeat;
+    private double sum;
+    private double squaredSum;
+
+    /**
+     * @param expectedIntervalMs How often heartbeats are sent, used until real samples are collected
+     * @param acceptablePauseMs  Pause that is tolerated on top of the observed intervals
+     */
+    public PhiAccrualDetector(long expectedIntervalMs, long acceptablePauseMs) {
+        this.intervals = new ArrayDeque<>();
+        this.acceptablePauseMs = acceptablePauseMs;
+        this.lastHeartbeat = System.currentTimeMillis();
+        this.addInterval(expectedIntervalMs);
+    }
+
+    /**
+     * Records the arrival of a heartbeat
+     */
+    public synchronized void heartbeat() {
+        long now = System.currentTimeMillis();
+        this.addInterval(now - this.lastHeartbeat);
+        this.lastHeartbeat = now;
+    }
+
+    /**
+     * @return Suspicion level for the current time
+     */
+    public synchronized double phi() {
+        long elapsed = System.currentTimeMillis() - this.lastHeartbeat;
+        double mean = this.sum / this.intervals.size() + this.acceptablePauseMs;
+        double variance = this.squaredSum / this.intervals.size() - Math.pow(this.sum / this.intervals.size(), 2);
+        double deviation = Math.max(Math.sqrt(Math.max(variance, 0)), MIN_STD_DEVIATION_MS);
+
+        // Logistic approximation of the normal distribution CDF
+        double y = (elapsed - mean) / deviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        double p = elapsed > mean ? e / (1.0 + e) : 1.0 - 1.0 / (1.0 + e);
+
+        return -Math.log10(Math.max(p, Double.MIN_VALUE));
+    }
+
+    /**
+     * @param interval Time between two heartbeats
+     */
+    private void addInterval(long interval) {
+        if (this.intervals.size() == MAX_SAMPLES) {
+            long removed = this.intervals.removeFirst();
+            this.sum -= removed;
+            this.squaredSum -= (double) removed * removed;
+        }
+
+        this.intervals.addLast(interval);
+        this.sum += interval;
+        this.squaredSum += (double) interval * interval;
+    }
+}
@@ -0,0 +1,167 @@
+package Network;
+
+import Utils.ClientResponse;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ---------------------------------------------------------------------------------------------------------------------
+ * Scheduler
+ * ---------------------------------------------------------------------------------------------------------------------
+ * Queues received messages and hands them to the handler one by one, most important first:
+ * - COMPLETION - responses from other nodes, they finish requests that are already in the network
+ * - NODE_REQUEST - requests forwarded by other nodes
+ * - CLIENT_REQUEST - new commands from clients
+ * Priorities only decide between connections, messages of one connection are always handled in the order they were received,
+ * e.g. a response may not overtake a request the same node sent before it.
+ * Messages with the same priority are handled in the order they were received.
+ * New commands are only queued while the client and the node are below their in-flight limits.
+ */
+public class Scheduler implements Runnable {
+    public static final int COMPLETION = 0;
+    public static final int NODE_REQUEST = 1;
+    public static final int CLIENT_REQUEST = 2;
+
+    private static final int MAX_IN_FLIGHT_PER_CLIENT = 256;
+    private static final int MAX_IN_FLIGHT = 4096;
+
+    private static class Task implements Comparable<Task> {
+        private final int priority;
+        private final long order;
+        private final ClientResponse message;
+        private final TCPClient client;
+
+        private Task(int priority, long order, ClientResponse message, TCPClient client) {
+            this.priority = priority;
+            this.order = order;
+            this.message = message;
+            this.client = client;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (this.priority != other.priority) return Integer.compare(this.priority, other.priority);
+            return Long.compare(this.order, other.order);
+        }
+    }
+
+    private final TCPClient.MessageHandler handler;
+    // Messages of each connection, and the first message of every connection that has some, by priority
+    private final Map<TCPClient, Queue<Task>> connections;
+    private final PriorityQueue<Task> heads;
+    private long order;
+    private final Map<TCPClient, AtomicInteger> inFlightPerClient;
+    private final AtomicInteger inFlight;
+
+    /**
+     * @param handler Handles the messages in order of priority
+     */
+    public Scheduler(TCPClient.MessageHandler handler) {
+        this.handler = handler;
+        this.connections = new HashMap<>();
+        this.heads = new PriorityQueue<>();
+        this.inFlightPerClient = new ConcurrentHashMap<>();
+        this.inFlight = new AtomicInteger();
+    }
+
+    /**
+     * Starts handling queued messages
+     */
+    public void start() {
+        Thread thread = new Thread(this);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                Task task = this.take();
+                this.handler.handle(task.message, task.client);
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @param message  Message to handle
+     * @param client   Client the message came from
+     * @param priority COMPLETION, NODE_REQUEST or CLIENT_REQUEST
+     */
+    public synchronized void submit(ClientResponse message, TCPClient client, int priority) {
+        Task task = new Task(priority, ++this.order, message, client);
+        Queue<Task> queue = this.connections.computeIfAbsent(client, c -> new ArrayDeque<>());
+        queue.add(task);
+        if (queue.size() == 1) {
+            this.heads.add(task);
+            this.notify();
+        }
+    }
+
+    /**
+     * @return The most important first message of all connections, the next message of its connection takes its place
+     */
+    private synchronized Task take() throws InterruptedException {
+        while (this.heads.isEmpty()) {
+            this.wait();
+        }
+
+        Task task = this.heads.poll();
+        Queue<Task> queue = this.connections.get(task.client);
+        queue.poll();
+        if (queue.isEmpty()) {
+            this.connections.remove(task.client);
+        } else {
+            this.heads.add(queue.peek());
+        }
+        return task;
+    }
+
+    /**
+     * Counts a new command as in flight until it is released
+     *
+     * @param connection Connection the command came from
+     * @return Whether the command can be handled, false when the client or the node is busy
+     */
+    public boolean admit(TCPClient connection) {
+        if (this.inFlight.incrementAndGet() > MAX_IN_FLIGHT) {
+            this.inFlight.decrementAndGet();
+            return false;
+        }
+
+        // Counted inside compute, release may remove the counter of the connection at the same time
+        AtomicInteger count = this.inFlightPerClient.compute(connection, (c, current) -> {
+            AtomicInteger counter = current == null ? new AtomicInteger() : current;
+            counter.incrementAndGet();
+            return counter;
+        });
+        if (count.get() > MAX_IN_FLIGHT_PER_CLIENT) {
+            this.release(connection);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param connection Connection whose command was responded to, nothing happens when it has no admitted command
+     */
+    public void release(TCPClient connection) {
+        boolean[] admitted = new boolean[1];
+        this.inFlightPerClient.computeIfPresent(connection, (c, count) -> {
+            admitted[0] = true;
+            return count.decrementAndGet() <= 0 ? null : count;
+        });
+        if (admitted[0]) {
+            this.inFlight.decrementAndGet();
+        }
+    }
+}
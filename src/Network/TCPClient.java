@@ -1,6 +1,7 @@
 package Network;
 
 import Utils.ClientResponse;
+import Utils.NodeInfo;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -15,13 +16,30 @@ public class TCPClient implements Runnable {
     }
 
     private final Socket clientSocket;
+    private final BufferedReader in;
+    private final PrintWriter out;
     private MessageHandler handler;
 
-    public TCPClient(Socket clientSocket, MessageHandler handler) {
+    public TCPClient(Socket clientSocket, MessageHandler handler) throws IOException {
         this.clientSocket = clientSocket;
+        // One reader for the whole connection, otherwise lines that arrive together are lost with the old buffer
+        this.in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+        this.out = new PrintWriter(clientSocket.getOutputStream(), true);
         this.setMessageHandler(handler);
     }
 
+    /**
+     * Shares the connection of another client
+     *
+     * @param connection Client whose connection is used
+     */
+    protected TCPClient(TCPClient connection) {
+        this.clientSocket = connection.clientSocket;
+        this.in = connection.in;
+        this.out = connection.out;
+        this.handler = connection.handler;
+    }
+
     public void run() {
         this.receive();
     }
@@ -29,8 +47,13 @@ public class TCPClient implements Runnable {
     public void receive() {
         while (true) {
             try {
-                this.handler.handle(this.readLine(), this);
+                ClientResponse response = this.readLine();
+                this.handler.handle(response, this);
+                // The handler may run later, so the end of the stream has to stop reading here
+                if (response.getMessage() == null) break;
             } catch (SocketException e) {
+                // The connection is gone, the handler must learn about it the same way as about the end of the stream
+                this.handler.handle(new ClientResponse(null, this.getPort()), this);
                 break;
             } catch (Exception e) {
                 e.printStackTrace();
@@ -45,13 +68,8 @@ public class TCPClient implements Runnable {
      * @param message The message to send
      */
     public synchronized void send(String message) {
-        try {
-            PrintWriter out = new PrintWriter(this.clientSocket.getOutputStream(), true);
-            out.println(message);
-            System.out.println(String.format("Sent: %s", message));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        this.out.println(message);
+        System.out.println(String.format("Sent: %s", message));
     }
 
     /**
@@ -59,8 +77,7 @@ public class TCPClient implements Runnable {
      */
     public ClientResponse readLine() throws SocketException {
         try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(this.clientSocket.getInputStream()));
-            return new ClientResponse(in.readLine(), this.getPort());
+            return new ClientResponse(this.in.readLine(), this.getPort());
         } catch (SocketException e) {
             throw e;
         } catch (IOException e) {
@@ -93,4 +110,18 @@ public class TCPClient implements Runnable {
     public int getPort() {
         return this.clientSocket.getPort();
     }
+
+    /**
+     * @return The client that owns the connection
+     */
+    public TCPClient getConnection() {
+        return this;
+    }
+
+    /**
+     * @return The address and port the client is connected to
+     */
+    public NodeInfo getNodeInfo() {
+        return new NodeInfo(this.clientSocket.getInetAddress().getHostAddress(), this.clientSocket.getPort());
+    }
 }
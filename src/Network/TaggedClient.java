@@ -0,0 +1,37 @@
+package Network;
+
+/**
+ * ---------------------------------------------------------------------------------------------------------------------
+ * TaggedClient
+ * ---------------------------------------------------------------------------------------------------------------------
+ * Represents a single request sent over a client session (see HELLO-CLIENT).
+ * Responses are prefixed with the tag of the request, and closing it keeps the session open for other requests
+ */
+public class TaggedClient extends TCPClient {
+    private final TCPClient connection;
+    private final String tag;
+
+    /**
+     * @param connection Session the request came from
+     * @param tag        Tag the client uses to match the response
+     */
+    public TaggedClient(TCPClient connection, String tag) {
+        super(connection);
+        this.connection = connection;
+        this.tag = tag;
+    }
+
+    @Override
+    public void send(String message) {
+        this.connection.send(String.format("%s %s", this.tag, message));
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public TCPClient getConnection() {
+        return this.connection;
+    }
+}
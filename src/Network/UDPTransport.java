@@ -0,0 +1,227 @@
+package Network;
+
+import Utils.ClientResponse;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ---------------------------------------------------------------------------------------------------------------------
+ * UDPTransport
+ * ---------------------------------------------------------------------------------------------------------------------
+ * Sends small lookups between nodes (GET, FIND, RETURN, ERROR) as datagrams instead of over the TCP connection,
+ * so they do not wait behind other messages to the same node.
+ * Each datagram is one message and is confirmed with ACK <verb> <ID>, without it the message is sent again
+ * every RETRANSMIT_MS and after MAX_ATTEMPTS over the TCP connection of the node.
+ * The verb and ID of the message identify it, so a message received twice is handled only once
+ */
+public class UDPTransport implements Runnable {
+    private static final int MAX_DATAGRAM_SIZE = 512;
+    private static final long RETRANSMIT_MS = 50;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int MAX_SEEN_MESSAGES = 4096;
+    private static final String ACK = "ACK";
+    private static final Set<String> LOOKUP_VERBS = new HashSet<>(Arrays.asList("GET", "FIND", "RETURN", "ERROR"));
+
+    private final int port;
+    private final TCPClient.MessageHandler handler;
+    private final Map<InetSocketAddress, TCPClient> nodes;
+    private final Map<TCPClient, InetSocketAddress> addresses;
+    private final Map<String, Retransmission> unconfirmed;
+    private final Set<String> seenMessages;
+    private final Timer timer;
+    private DatagramSocket socket;
+
+    private class Retransmission extends TimerTask {
+        private final TCPClient node;
+        private final InetSocketAddress address;
+        private final String message;
+        private final String key;
+        private int attempts;
+
+        private Retransmission(TCPClient node, InetSocketAddress address, String message, String key) {
+            this.node = node;
+            this.address = address;
+            this.message = message;
+            this.key = key;
+            this.attempts = 1;
+        }
+
+        @Override
+        public void run() {
+            if (!unconfirmed.containsKey(this.key)) {
+                this.cancel();
+                return;
+            }
+
+            if (this.attempts < MAX_ATTEMPTS) {
+                this.attempts++;
+                transmit(this.address, this.message);
+                return;
+            }
+
+            this.cancel();
+            if (unconfirmed.remove(this.key) == null) return;
+            System.out.printf("No ACK from %s, sending over TCP: %s%n", this.address, this.message);
+            this.node.send(this.message);
+        }
+    }
+
+    /**
+     * @param port    The port to bind to, the same as the TCP port of the node
+     * @param handler Handles the messages, with the TCP connection of the node that sent them
+     */
+    public UDPTransport(int port, TCPClient.MessageHandler handler) {
+        this.port = port;
+        this.handler = handler;
+        this.nodes = new ConcurrentHashMap<>();
+        this.addresses = new ConcurrentHashMap<>();
+        this.unconfirmed = new ConcurrentHashMap<>();
+        this.seenMessages = Collections.synchronizedSet(Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return this.size() > MAX_SEEN_MESSAGES;
+            }
+        }));
+        this.timer = new Timer(true);
+    }
+
+    /**
+     * Binds the socket and starts receiving datagrams, messages are sent over TCP if it fails
+     */
+    public void start() {
+        try {
+            this.socket = new DatagramSocket(this.port);
+        } catch (SocketException e) {
+            System.out.printf("Could not start UDP on port %d: %s%n", this.port, e.getMessage());
+            return;
+        }
+
+        Thread thread = new Thread(this);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return Whether the socket is bound
+     */
+    public boolean isRunning() {
+        return this.socket != null;
+    }
+
+    /**
+     * @param node    TCP connection of the node
+     * @param address Address and UDP port of the node
+     */
+    public void register(TCPClient node, InetSocketAddress address) {
+        this.nodes.put(address, node);
+        this.addresses.put(node, address);
+    }
+
+    /**
+     * @param node TCP connection of the node that was removed
+     */
+    public void unregister(TCPClient node) {
+        InetSocketAddress address = this.addresses.remove(node);
+        if (address != null) this.nodes.remove(address);
+    }
+
+    /**
+     * @param node    Node to send the message to
+     * @param message Message to send
+     * @return Whether the message was sent as a datagram, false when it has to be sent over TCP
+     */
+    public boolean send(TCPClient node, String message) {
+        InetSocketAddress address = this.addresses.get(node);
+        String[] parts = message.split(" ");
+        if (!this.isRunning() || address == null || !isLookup(parts)
+                || message.getBytes(StandardCharsets.UTF_8).length > MAX_DATAGRAM_SIZE) {
+            return false;
+        }
+
+        String key = key(address, parts[0], parts[1]);
+        Retransmission retransmission = new Retransmission(node, address, message, key);
+        this.unconfirmed.put(key, retransmission);
+        // Scheduled before sending, the ACK may arrive and cancel it right away
+        this.timer.schedule(retransmission, RETRANSMIT_MS, RETRANSMIT_MS);
+        this.transmit(address, message);
+        return true;
+    }
+
+    /**
+     * Remembers lookups received from the node, also used for the ones that came over TCP,
+     * a lookup whose ACK was lost may arrive again over TCP
+     *
+     * @param node    Node that sent the message
+     * @param message Message that was received
+     * @return Whether the message should be handled, false when it was handled already
+     */
+    public boolean firstDelivery(TCPClient node, String message) {
+        InetSocketAddress address = this.addresses.get(node);
+        String[] parts = message.split(" ");
+        if (address == null || !isLookup(parts)) return true;
+
+        return this.seenMessages.add(key(address, parts[0], parts[1]));
+    }
+
+    public void run() {
+        byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        while (true) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                this.socket.receive(packet);
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+
+            InetSocketAddress address = (InetSocketAddress) packet.getSocketAddress();
+            String message = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+            String[] parts = message.split(" ");
+            if (parts.length < 2) continue;
+
+            if (parts[0].equals(ACK) && parts.length == 3) {
+                Retransmission retransmission = this.unconfirmed.remove(key(address, parts[1], parts[2]));
+                if (retransmission != null) retransmission.cancel();
+                continue;
+            }
+
+            // Without an ACK the node sends the message over TCP once it knows this node
+            TCPClient node = this.nodes.get(address);
+            if (node == null || !isLookup(parts)) {
+                System.out.printf("Ignoring datagram from %s: %s%n", address, message);
+                continue;
+            }
+
+            this.transmit(address, String.format("%s %s %s", ACK, parts[0], parts[1]));
+            if (!this.firstDelivery(node, message)) continue;
+
+            System.out.printf("Received datagram: %s%n", message);
+            this.handler.handle(new ClientResponse(message, node.getPort()), node);
+        }
+    }
+
+    private void transmit(InetSocketAddress address, String message) {
+        byte[] data = message.getBytes(StandardCharsets.UTF_8);
+        try {
+            this.socket.send(new DatagramPacket(data, data.length, address));
+            System.out.printf("Sent datagram: %s%n", message);
+        } catch (IOException e) {
+            System.out.printf("Could not send datagram to %s: %s%n", address, e.getMessage());
+        }
+    }
+
+    private static boolean isLookup(String[] parts) {
+        return parts.length >= 2 && LOOKUP_VERBS.contains(parts[0]);
+    }
+
+    private static String key(InetSocketAddress address, String verb, String ID) {
+        return String.format("%s %s %s", address, verb, ID);
+    }
+}
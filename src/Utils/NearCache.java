@@ -0,0 +1,93 @@
+package Utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ---------------------------------------------------------------------------------------------------------------------
+ * NearCache
+ * ---------------------------------------------------------------------------------------------------------------------
+ * Bounded LRU cache of key:value pairs read from other nodes, entries expire after ttl milliseconds
+ */
+public class NearCache {
+    private static class CachedValue {
+        private final int value;
+        private final long expiresAt;
+
+        private CachedValue(int value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int capacity;
+    private final long ttl;
+    private final LinkedHashMap<Integer, CachedValue> entries;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param capacity Maximum number of keys, 0 disables the cache
+     * @param ttl      Time in milliseconds after which an entry is not used anymore
+     */
+    public NearCache(int capacity, long ttl) {
+        this.capacity = capacity;
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<Integer, CachedValue>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, CachedValue> eldest) {
+                if (this.size() <= NearCache.this.capacity) return false;
+                NearCache.this.evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return Whether the cache was enabled
+     */
+    public boolean isEnabled() {
+        return this.capacity > 0;
+    }
+
+    /**
+     * @param key Key to look up
+     * @return Cached value or null when it is missing or expired
+     */
+    public Integer get(int key) {
+        CachedValue entry = this.entries.get(key);
+        if (entry == null || entry.expiresAt < System.currentTimeMillis()) {
+            if (entry != null) this.entries.remove(key);
+            this.misses++;
+            return null;
+        }
+
+        this.hits++;
+        return entry.value;
+    }
+
+    /**
+     * @param key   Key to cache
+     * @param value Value to cache
+     */
+    public void put(int key, int value) {
+        if (!this.isEnabled()) return;
+        this.entries.put(key, new CachedValue(value, System.currentTimeMillis() + this.ttl));
+    }
+
+    /**
+     * @param key Key that changed on its node
+     */
+    public void invalidate(int key) {
+        this.entries.remove(key);
+    }
+
+    /**
+     * @return hits:<hits> misses:<misses> evictions:<evictions> size:<size>
+     */
+    @Override
+    public String toString() {
+        return String.format("hits:%d misses:%d evictions:%d size:%d", this.hits, this.misses, this.evictions, this.entries.size());
+    }
+}
@@ -1,5 +1,7 @@
 package Utils;
 
+import java.util.Objects;
+
 /**
  * A simple tuple representing the information of a node
  */
@@ -30,6 +32,19 @@ public class NodeInfo {
         return this.port;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof NodeInfo)) return false;
+        NodeInfo nodeInfo = (NodeInfo) o;
+        return this.port == nodeInfo.port && this.address.equals(nodeInfo.address);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.address, this.port);
+    }
+
     @Override
     public String toString() {
         return String.format("%s:%d", this.address, this.port);
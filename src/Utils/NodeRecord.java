@@ -29,6 +29,13 @@ public class NodeRecord {
         return this.key == key;
     }
 
+    /**
+     * @return Key
+     */
+    public int getKey() {
+        return this.key;
+    }
+
     /**
      * @return Value
      */